@@ -0,0 +1,177 @@
+/**
+ * CLASS: AdaptiveSampler
+ *   This class estimates how fast the device is moving from successive location fixes, and from
+ *   that decides how often the location providers should report and the server should hear from us.
+ *   A device sitting on a desk is sampled and uploaded rarely; one in a car often. Fixes can be fed
+ *   as plain values, so a scripted sequence of fixes can drive it without a device.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import android.location.Location;
+import android.util.Log;
+
+public class AdaptiveSampler {
+    private static final String TAG = "AdaptiveSampler";
+
+    /** Movement modes */
+    public static final int STATIONARY = 0;
+    public static final int WALKING = 1;
+    public static final int DRIVING = 2;
+
+    // Speed thresholds between the modes, in meters per second
+    private static final double WALKING_SPEED = 0.5;
+    private static final double DRIVING_SPEED = 4.0;
+
+    // Weight of the newest fix in the smoothed speed
+    private static final double SMOOTHING = 0.4;
+
+    // Milliseconds the speed must stay below WALKING_SPEED before we call the device stationary
+    private static final long STATIONARY_AFTER = 1000 * 60 * 2;
+
+    // Fixes further apart than this (in milliseconds) say nothing about the current speed
+    private static final long MAX_FIX_GAP = 1000 * 60 * 10;
+
+    // Provider settings for each mode: minimum time (ms) and distance (m) between updates
+    private static final long[] MIN_TIME = { 1000 * 60 * 5, 1000 * 60, 1000 * 15 };
+    private static final float[] MIN_DISTANCE = { 50, 10, 25 };
+
+    // Poll delay multiplier for each mode
+    private static final double[] POLL_FACTOR = { 4, 1, 0.5 };
+
+    // A fix is only worth uploading once it is this far (in meters) from the last uploaded one...
+    private static final double MIN_UPLOAD_DISTANCE = 25;
+    // ...or the last upload is this old (in milliseconds), so the server does not think we are gone
+    private static final long MAX_UPLOAD_AGE = 1000 * 60 * 15;
+
+    private int mode = WALKING;
+    private double speed = 0;
+    private boolean haveFix = false;
+    private long lastTime;
+    private double lastLat, lastLon;
+    private long slowSince = -1;
+
+    private boolean uploaded = false;
+    private long uploadTime;
+    private double uploadLat, uploadLon;
+
+    /**
+     * Feed a location fix
+     * @return Whether the movement mode changed
+     */
+    public boolean onLocation(Location location) {
+        return onFix(location.getTime(), location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0);
+    }
+
+    /**
+     * Feed a location fix
+     * @param time: The time of the fix, in milliseconds
+     * @param accuracy: The accuracy of the fix in meters, or 0 if unknown
+     * @return Whether the movement mode changed
+     */
+    public synchronized boolean onFix(long time, double lat, double lon, float accuracy) {
+        if (!haveFix || time - lastTime > MAX_FIX_GAP) {
+            // Nothing (recent) to compare with - keep the mode we have
+            remember(time, lat, lon);
+            return false;
+        }
+        long elapsed = time - lastTime;
+        if (elapsed <= 0) return false;
+
+        // Movement within the accuracy of the fix is just noise
+        double moved = GeoUtils.distance(lastLat, lastLon, lat, lon);
+        moved = Math.max(0, moved - accuracy);
+        speed = SMOOTHING * (moved * 1000 / elapsed) + (1 - SMOOTHING) * speed;
+        remember(time, lat, lon);
+
+        int newMode;
+        if (speed >= DRIVING_SPEED) {
+            newMode = DRIVING;
+        } else if (speed >= WALKING_SPEED) {
+            newMode = WALKING;
+        } else {
+            newMode = mode;
+        }
+        if (speed < WALKING_SPEED) {
+            if (slowSince < 0) {
+                slowSince = time;
+            }
+            if (time - slowSince >= STATIONARY_AFTER) {
+                newMode = STATIONARY;
+            }
+        } else {
+            slowSince = -1;
+        }
+
+        if (newMode == mode) return false;
+        Log.v(TAG, "Movement mode " + mode + " -> " + newMode + " (" + speed + " m/s)");
+        mode = newMode;
+        return true;
+    }
+
+    private void remember(long time, double lat, double lon) {
+        haveFix = true;
+        lastTime = time;
+        lastLat = lat;
+        lastLon = lon;
+    }
+
+    /**
+     * Check whether a fix is worth uploading - call markUploaded() once the server has it
+     * @param now: The current time, in milliseconds
+     */
+    public boolean shouldUpload(Location location, long now) {
+        return shouldUpload(location.getLatitude(), location.getLongitude(), now);
+    }
+
+    /**
+     * Check whether a position is worth uploading - call markUploaded() once the server has it
+     * @param now: The current time, in milliseconds
+     */
+    public synchronized boolean shouldUpload(double lat, double lon, long now) {
+        return !uploaded || now - uploadTime >= MAX_UPLOAD_AGE
+                || GeoUtils.distance(uploadLat, uploadLon, lat, lon) >= MIN_UPLOAD_DISTANCE;
+    }
+
+    /**
+     * Remember a fix as the last one the server has. Until this is called, shouldUpload() keeps saying
+     * yes, so a failed upload is tried again at the next poll.
+     * @param now: The current time, in milliseconds
+     */
+    public void markUploaded(Location location, long now) {
+        markUploaded(location.getLatitude(), location.getLongitude(), now);
+    }
+
+    /** Remember a position as the last one the server has - see markUploaded(Location, long) */
+    public synchronized void markUploaded(double lat, double lon, long now) {
+        uploaded = true;
+        uploadTime = now;
+        uploadLat = lat;
+        uploadLon = lon;
+    }
+
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    /** Get the smoothed speed, in meters per second */
+    public synchronized double getSpeed() {
+        return speed;
+    }
+
+    /** Get the minimum time between provider updates for the current mode, in milliseconds */
+    public synchronized long getMinTime() {
+        return MIN_TIME[mode];
+    }
+
+    /** Get the minimum distance between provider updates for the current mode, in meters */
+    public synchronized float getMinDistance() {
+        return MIN_DISTANCE[mode];
+    }
+
+    /** Get what the poll delay should be multiplied by in the current mode */
+    public synchronized double getPollFactor() {
+        return POLL_FACTOR[mode];
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * CLASS: AnnounceCache
+ *   This class remembers which friends were announced recently, so a friend who stays nearby (or
+ *   drops out of the list and comes straight back) is not announced again on every poll. An entry
+ *   expires once it is older than the time to live.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+public class AnnounceCache {
+    private final long ttl;
+
+    // When each friend was last announced, oldest first
+    private final LinkedHashMap<String, Long> announced = new LinkedHashMap<String, Long>();
+
+    /**
+     * Constructor
+     * @param ttl: Milliseconds before a friend may be announced again
+     */
+    public AnnounceCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /** Check whether a friend was announced within the time to live */
+    public synchronized boolean isRecent(String id) {
+        expire();
+        return announced.containsKey(id);
+    }
+
+    /** Remember that a friend was announced just now */
+    public synchronized void markAnnounced(String id) {
+        // Re-insert, so the map stays ordered by announcement time
+        announced.remove(id);
+        announced.put(id, SystemClock.elapsedRealtime());
+    }
+
+    /** Forget everyone, so the next friends found are announced */
+    public synchronized void clear() {
+        announced.clear();
+    }
+
+    private void expire() {
+        long oldest = SystemClock.elapsedRealtime() - ttl;
+        for (Iterator<Map.Entry<String, Long>> it = announced.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue() > oldest) break;
+            it.remove();
+        }
+    }
+}
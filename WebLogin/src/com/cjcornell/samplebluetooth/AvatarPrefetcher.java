@@ -0,0 +1,121 @@
+/**
+ * CLASS: AvatarPrefetcher
+ *   This class loads the profile pictures of nearby friends as soon as a friend list arrives, rather
+ *   than when the user drills into one friend. The closest friends - the ones the list shows first -
+ *   are loaded in parallel on the prefetch executor, decoded at the size the drill-down shows them
+ *   at, so the list can show them as avatars and the drill-down can show them right away. Friends
+ *   whose pictures are cached or already being loaded are skipped.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.cjcornell.samplebluetooth.net.Abortable;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+public class AvatarPrefetcher {
+    private static final String TAG = "AvatarPrefetcher";
+
+    // How many of the closest friends to load pictures for
+    private static final int DEFAULT_MAX_FRIENDS = 10;
+
+    /** Told on the main thread when a picture has been loaded */
+    public interface Listener {
+        public void onAvatarLoaded(String facebookId, Bitmap picture);
+    }
+
+    private final int maxFriends;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Facebook IDs whose pictures are queued or loading
+    private final Set<String> pending = new HashSet<String>();
+
+    /** @param listener: Told when a picture has been loaded, or null */
+    public AvatarPrefetcher(Listener listener) {
+        this(DEFAULT_MAX_FRIENDS, listener);
+    }
+
+    /**
+     * @param maxFriends: How many of the closest friends to load pictures for
+     * @param listener: Told when a picture has been loaded, or null
+     */
+    public AvatarPrefetcher(int maxFriends, Listener listener) {
+        this.maxFriends = maxFriends;
+        this.listener = listener;
+    }
+
+    /**
+     * Load the pictures of the closest friends of a list that are not cached yet
+     * @param friends: The friends, closest first
+     * @param width, height: The size the pictures are shown at
+     */
+    public void prefetch(List<Friend> friends, int width, int height) {
+        int queued = 0;
+        for (int i = 0; i < friends.size() && i < maxFriends; i++) {
+            String id = friends.get(i).getId();
+            if (ImageCache.getInstance().getBitmap(ImageCache.profileKey(id), width, height) != null) continue;
+            synchronized (pending) {
+                if (!pending.add(id)) continue;
+            }
+            TaskExecutors.PREFETCH.execute(new Load(id, width, height));
+            queued++;
+        }
+        if (queued > 0) {
+            Log.v(TAG, "Loading " + queued + " profile pictures");
+        }
+    }
+
+    /**
+     * Loading one friend's picture. If the prefetch executor drops it before it runs, it is aborted,
+     * so the friend is no longer taken as pending and the next update tries again.
+     */
+    private class Load implements Runnable, Abortable {
+        private final String id;
+        private final int width, height;
+
+        Load(String id, int width, int height) {
+            this.id = id;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void run() {
+            final Bitmap picture;
+            try {
+                picture = ImageCache.getInstance().load(ImageCache.profileKey(id), ImageCache.profileUrl(id),
+                        null, width, height);
+            } finally {
+                done();
+            }
+            if (picture != null && listener != null) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onAvatarLoaded(id, picture);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void abort() {
+            Log.v(TAG, "Dropped the picture of " + id);
+            done();
+        }
+
+        private void done() {
+            synchronized (pending) {
+                pending.remove(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * CLASS: BitmapDecoder
+ *   This class decodes downloaded images at the size they are shown at rather than at full
+ *   resolution: the image bounds are read first, and the image is subsampled down to just above
+ *   the target size. The bytes decoded are counted so the effect on the heap can be followed in
+ *   the log.
+ *   Every decode gets a new bitmap - there is no inBitmap reuse pool. Bitmaps leave the memory
+ *   cache while views, preloaders and prefetchers may still hold them, and a decode into one of
+ *   those would redraw a picture on screen. Decoding at view size keeps the new bitmaps small.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+public class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+
+    private static BitmapDecoder instance = new BitmapDecoder();
+
+    private final AtomicLong decodes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong fullSizeBytes = new AtomicLong();
+
+    protected BitmapDecoder() {}
+
+    public static BitmapDecoder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Decode an image to about the given size - never smaller, and never larger than twice it
+     * either way, unless the image itself is smaller. A size of 0 or less decodes at full size.
+     * @return The bitmap, or null if the data is not an image
+     */
+    public Bitmap decode(byte[] data, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int fullWidth = options.outWidth, fullHeight = options.outHeight;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(fullWidth, fullHeight, width, height);
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null) return null;
+
+        long bytes = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        long count = decodes.incrementAndGet();
+        long total = decodedBytes.addAndGet(bytes);
+        long fullTotal = fullSizeBytes.addAndGet((long) fullWidth * fullHeight * 4);
+        Log.v(TAG, "Decoded " + fullWidth + "x" + fullHeight + " at 1/" + options.inSampleSize + " (" + bytes / 1024
+                + " KB). Totals: " + count + " decodes, " + total / 1024 + " KB decoded of " + fullTotal / 1024
+                + " KB at full size");
+        return bitmap;
+    }
+
+    /** Get the largest power of two that keeps the image at least the given size */
+    static int sampleSize(int fullWidth, int fullHeight, int width, int height) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0) return sampleSize;
+        while (fullWidth / (sampleSize * 2) >= width && fullHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Get the width to decode images for a view at: its layout width if that is fixed, its actual width
+     * if it fills its parent, or else the screen width - a view that wraps its content is only as wide
+     * as the image it shows, so its own width says nothing about the next image
+     */
+    public static int targetWidth(View view) {
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null && params.width > 0) return params.width;
+        if (params != null && params.width == ViewGroup.LayoutParams.MATCH_PARENT && view.getWidth() > 0) {
+            return view.getWidth();
+        }
+        return view.getResources().getDisplayMetrics().widthPixels;
+    }
+
+    /** Get the height to decode images for a view at - see targetWidth() */
+    public static int targetHeight(View view) {
+        ViewGroup.LayoutParams params = view.getLayoutParams();
+        if (params != null && params.height > 0) return params.height;
+        if (params != null && params.height == ViewGroup.LayoutParams.MATCH_PARENT && view.getHeight() > 0) {
+            return view.getHeight();
+        }
+        return view.getResources().getDisplayMetrics().heightPixels;
+    }
+
+    /** Get the total bytes of all bitmaps decoded so far */
+    public long getDecodedBytes() {
+        return decodedBytes.get();
+    }
+}
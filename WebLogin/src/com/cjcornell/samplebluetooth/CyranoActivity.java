@@ -6,26 +6,25 @@
 package com.cjcornell.samplebluetooth;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.cjcornell.samplebluetooth.data.AppSettings;
 import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.net.Abortable;
+import com.cjcornell.samplebluetooth.net.ResponseCache;
 import com.facebook.Session;
 
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
@@ -41,7 +40,6 @@ import android.widget.AdapterView.OnItemClickListener;
 public class CyranoActivity extends Activity implements AudioMethods.AudioCompletionNotifiable {
     private final static String TAG = "Cyrano";
     private final static int MAX_BRANCHES = 4;
-    public final static String DISPLAY_FRIENDS = "com.cjcornell.samplebluetooth.DISPLAY_FRIENDS";
     
     // Milliseconds before automatically closing splash screen
     private final static int SPLASH_TIMEOUT = 10000;
@@ -72,15 +70,50 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
     private Handler uiHandler;
     
     // Used with friend notifications
-    private BroadcastReceiver gotFriends = new BroadcastReceiver() {
+    private FriendStore.Listener gotFriends = new FriendStore.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.v(TAG, "Got message to display friends.");
-            List<Friend> friends = Arrays.asList((Friend[])intent.getSerializableExtra("friends"));
-            displayFriends(friends);
+        public void onFriendsChanged(FriendStore.Snapshot snapshot) {
+            if (snapshot.getVersion() == friendsVersion) return;
+            Log.v(TAG, "Got friends snapshot " + snapshot.getVersion());
+            friendsVersion = snapshot.getVersion();
+            if (snapshot.getListVersion() == friendsListVersion) {
+                // Only the distances changed - refresh the list if it is showing, and leave anything else be
+                if (friendsContent.getVisibility() == View.VISIBLE && !snapshot.isEmpty()) {
+                    displayMultipleFriends(snapshot.getFriends());
+                }
+                return;
+            }
+            friendsListVersion = snapshot.getListVersion();
+            if (AppSettings.graphicalMode) {
+                avatarPrefetcher.prefetch(snapshot.getFriends(),
+                        BitmapDecoder.targetWidth(friendPicture), BitmapDecoder.targetHeight(friendPicture));
+            }
+            displayFriends(snapshot.getFriends());
         }
     };
     
+    // Loads the profile pictures of nearby friends, and shows them in the friends list when they arrive
+    private AvatarPrefetcher avatarPrefetcher = new AvatarPrefetcher(new AvatarPrefetcher.Listener() {
+        @Override
+        public void onAvatarLoaded(String facebookId, Bitmap picture) {
+            if (friendsAdapter != null) {
+                friendsAdapter.showAvatar(friendsList, facebookId, picture);
+            }
+        }
+    });
+    
+    // The profile picture being loaded for friendPicture, if any
+    private FacebookProfileDownloader profileTask = null;
+    
+    // Version of the last friends snapshot we displayed, and of the last one with new friends in it
+    private long friendsVersion = 0;
+    private long friendsListVersion = 0;
+    
+    // The friends list adapter, and the (read-only) list and text size it was built for
+    private FriendAdapter friendsAdapter = null;
+    private List<Friend> adapterFriends = null;
+    private int adapterTextSize = -1;
+    
     
     // A list of troubleshooting items
     private List<Item> tsItems = new ArrayList<Item>();
@@ -88,6 +121,14 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
     
     // Application state variables
     private boolean currentlyTroubleshooting;
+    private int scriptRequest = 0;
+    
+    // Loads the pictures of the items that may be shown next, and the scripts the current item can branch to
+    private ImagePreloader imagePreloader = new ImagePreloader();
+    private ScriptPrefetcher scriptPrefetcher = new ScriptPrefetcher(imagePreloader);
+    
+    // Tasks whose results are only wanted by the current view - they are cancelled when it changes
+    private List<AsyncTask<?, ?, ?>> viewTasks = new ArrayList<AsyncTask<?, ?, ?>>();
     private Runnable backButtonAction;
     
     // Dialog that displays the splash screen
@@ -134,8 +175,10 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
         setLayoutAttributes();
         showSplashScreen();
         
-        // Load up the command groups
-        new CommandGroupTask(this).execute();
+        // Load up the command groups, revalidating any cached copy
+        ResponseCache.getInstance().init(this);
+        ImageCache.getInstance().init(this);
+        new CommandGroupTask(this).executeOnExecutor(TaskExecutors.INTERACTIVE);
         runner = new ScheduledThreadPoolExecutor(0);
         runner.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
         runner.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
@@ -237,7 +280,7 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
             currentItem.pause();
         }
         AudioMethods.stopTextToSpeech();
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(gotFriends);
+        FriendStore.getInstance().unregister(gotFriends);
         
         super.onPause();
     }
@@ -263,8 +306,11 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
         
         uiHandler = new Handler();
         
-        IntentFilter iff = new IntentFilter(DISPLAY_FRIENDS);
-        LocalBroadcastManager.getInstance(this).registerReceiver(gotFriends, iff);
+        // Catch up on the latest friends published while we were paused - only the latest, not each one
+        FriendStore.getInstance().register(gotFriends);
+        if (FriendStore.getInstance().hasChangedSince(friendsVersion)) {
+            gotFriends.onFriendsChanged(FriendStore.getInstance().getSnapshot());
+        }
         //if (currentItem != null) {
         //    currentItem.pause();
         // }
@@ -330,7 +376,7 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
             }
         }
         // Get the list of friends to display and display them
-        List<Friend> fl = FriendFinderService.friendList;
+        List<Friend> fl = FriendStore.getInstance().getSnapshot().getFriends();
         if (fl != null && fl.size() > 0) {
             displayMultipleFriends(fl);
             setupFriendsDisplay();
@@ -436,16 +482,18 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
      * @param friends The list of friends to display. Must not be null.
      */
     private void displayMultipleFriends(final List<Friend> friends) {
-        // Set the adapter, using the layout corresponding to the current font size setting
-        ArrayAdapter<Friend> adapter = null;
-        if (AppSettings.textSize < 1) {
-            adapter = new ArrayAdapter<Friend>(this, R.layout.layout_list1, friends);
-        } else if (AppSettings.textSize == 1) {
-            adapter = new ArrayAdapter<Friend>(this, R.layout.layout_list2, friends);
-        } else {
-            adapter = new ArrayAdapter<Friend>(this, R.layout.layout_list3, friends);
+        // Snapshot lists never change, so the same list at the same text size needs no new adapter
+        if (friends == adapterFriends && AppSettings.textSize == adapterTextSize && friendsList.getAdapter() != null) {
+            Log.v(TAG, "Friends unchanged - keeping the list adapter");
+            return;
         }
-        friendsList.setAdapter(adapter);
+        adapterFriends = friends;
+        adapterTextSize = AppSettings.textSize;
+        
+        // Set the adapter, with the current font size setting and the size profile pictures are cached at
+        friendsAdapter = new FriendAdapter(this, friends, AppSettings.textSize,
+                BitmapDecoder.targetWidth(friendPicture), BitmapDecoder.targetHeight(friendPicture));
+        friendsList.setAdapter(friendsAdapter);
         
         // Set up the action for clicking on a friend in the list
         friendsList.setOnItemClickListener(new OnItemClickListener() {
@@ -497,19 +545,10 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
             friendCoordinates.setText(sb.toString());
         }
         
-        Bitmap picture = null;
-        try {
-            picture = new FacebookProfileDownloader().execute(friend.getId()).get();
-        } catch (InterruptedException e) {
-            Log.e(TAG, e.toString());
-        } catch (ExecutionException e) {
-            Log.e(TAG, e.toString());
-        }
-        
         // Only display the picture if we are in graphical mode
         if (AppSettings.graphicalMode) {
             friendPicture.setVisibility(View.VISIBLE);
-            friendPicture.setImageBitmap(picture);
+            showProfilePicture(friend.getId());
         } else {
             friendPicture.setVisibility(View.GONE);
         }
@@ -591,7 +630,13 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
         // Display the image associated with the item, if there is one and if graphical mode is on
         if (AppSettings.graphicalMode && item.getURL() != null && !"".equals(item.getURL())) {
             mainPicture.setVisibility(View.VISIBLE);
-            new DownloadImageTask(mainPicture).execute(item.getURL());
+            Bitmap cached = ImageCache.getInstance().getBitmap(item.getURL(),
+                    BitmapDecoder.targetWidth(mainPicture), BitmapDecoder.targetHeight(mainPicture));
+            if (cached != null) {
+                mainPicture.setImageBitmap(cached);
+            } else {
+                track(new DownloadImageTask(mainPicture)).executeOnExecutor(TaskExecutors.MEDIA, item.getURL());
+            }
         } else {
             mainPicture.setImageBitmap(null);
         }
@@ -611,9 +656,16 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
             branchControls.setVisibility(View.VISIBLE);
         }
         
-        // play the item automatically
+        // play the item automatically, and load what may be shown next meanwhile
         item.play(this);
         scheduleAutoAdvance(item);
+        if (AppSettings.graphicalMode) {
+            imagePreloader.preload(tsItems, item,
+                    BitmapDecoder.targetWidth(mainPicture), BitmapDecoder.targetHeight(mainPicture));
+        } else {
+            imagePreloader.cancel();
+        }
+        scriptPrefetcher.prefetch(item);
     }
     
     
@@ -714,12 +766,29 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
         if (branchNo < 0 || branchNo >= currentItem.getBranches().size())
             return;
         
-        // Branch to the appropriate troubleshooting group
+        // Branch to the appropriate troubleshooting group - do not let an auto advance replace the
+        // current view (and with it the branch request) meanwhile
         Item.Branch br = currentItem.getBranches().get(branchNo);
+        cancelAutoAdvance();
+        
+        // If we already have the target script, resolve the branch right here
+        Script cached = null;
+        if (br.groupId >= 0) {
+            cached = ScriptCache.getInstance().peekGroup(br.groupId);
+        } else if (br.instructionId > 0) {
+            cached = ScriptCache.getInstance().peekBranch(br.instructionId);
+        }
+        if (cached != null) {
+            Log.v(TAG, "Branching locally");
+            nextScriptRequest();
+            displayScript(cached, br.groupId >= 0 ? br.instructionId : cached.positionOf(Integer.toString(br.instructionId)));
+            return;
+        }
+        
         if (br.groupId >= 0) {
-            new CoachingTask().execute(br.groupId, this, br.instructionId);
+            track(new CoachingTask(this)).executeOnExecutor(TaskExecutors.INTERACTIVE, br.groupId, br.instructionId);
         } else if (br.instructionId > 0) {
-            new BranchTask().execute(br.instructionId, this);
+            track(new BranchTask(this)).executeOnExecutor(TaskExecutors.INTERACTIVE, br.instructionId);
         }
     }
     
@@ -728,7 +797,7 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
      */
     public void startTroubleshooting(int groupId) {
         currentlyTroubleshooting = true;
-        new CoachingTask().execute(groupId, this);
+        track(new CoachingTask(this)).executeOnExecutor(TaskExecutors.INTERACTIVE, groupId);
         backButtonAction = new Runnable() {
             @Override
             public void run() {
@@ -742,6 +811,8 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
      */
     public void finishTroubleshooting() {
         cancelAutoAdvance();
+        scriptPrefetcher.cancel();
+        imagePreloader.cancel();
         if (currentItem != null) {
             currentItem.stop();
         }
@@ -798,12 +869,67 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
             commandGroupContent.setVisibility(View.VISIBLE);
             setTitle(getString(R.string.app_name) + ": " + getString(R.string.scriptsHeading));
         } else {
-            new CommandGroupTask(this).execute();
+            new CommandGroupTask(this).executeOnExecutor(TaskExecutors.INTERACTIVE);
         }
     }
     
-    /** Clear the UI */
+    /**
+     * Show a Facebook profile picture in friendPicture: right away if it is cached in memory, otherwise
+     * a placeholder until it has been loaded in the background. Never waits on the download.
+     */
+    private void showProfilePicture(String facebookId) {
+        // A picture still loading for the friend shown before is no longer wanted
+        if (profileTask != null && profileTask.getStatus() != AsyncTask.Status.FINISHED) {
+            profileTask.cancel(true);
+            profileTask.abort();
+        }
+        profileTask = null;
+        friendPicture.setTag(facebookId);
+        
+        Bitmap cached = ImageCache.getInstance().getBitmap(ImageCache.profileKey(facebookId),
+                BitmapDecoder.targetWidth(friendPicture), BitmapDecoder.targetHeight(friendPicture));
+        if (cached != null) {
+            friendPicture.setImageBitmap(cached);
+        } else {
+            friendPicture.setImageResource(R.drawable.profile_placeholder);
+            profileTask = track(new FacebookProfileDownloader(friendPicture));
+            profileTask.executeOnExecutor(TaskExecutors.MEDIA, facebookId);
+        }
+    }
+    
+    /**
+     * Track a task whose result belongs to the current view. It is cancelled (and its request
+     * aborted) as soon as the view changes, so its onPostExecute never runs on a different view.
+     * @return The task, so it can be executed right away
+     */
+    private <T extends AsyncTask<?, ?, ?>> T track(T task) {
+        Iterator<AsyncTask<?, ?, ?>> it = viewTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().getStatus() == AsyncTask.Status.FINISHED) {
+                it.remove();
+            }
+        }
+        viewTasks.add(task);
+        return task;
+    }
+    
+    /** Cancel all the tasks working for the current view */
+    private void cancelViewTasks() {
+        for (AsyncTask<?, ?, ?> task : viewTasks) {
+            if (task.getStatus() != AsyncTask.Status.FINISHED) {
+                task.cancel(true);
+                if (task instanceof Abortable) {
+                    ((Abortable) task).abort();
+                }
+            }
+        }
+        viewTasks.clear();
+    }
+    
+    /** Clear the UI - whatever was being loaded for the previous view is no longer wanted */
     public void clearUI() {
+        cancelViewTasks();
+        
         // Set all content to be gone
         friendContent.setVisibility(View.GONE);
         friendsContent.setVisibility(View.GONE);
@@ -822,6 +948,37 @@ public class CyranoActivity extends Activity implements AudioMethods.AudioComple
         mainTitle.setTextSize(TypedValue.COMPLEX_UNIT_SP, AppSettings.getTitleSize());
     }
     
+    /**
+     * Display a script, starting at the given position. If the position is not in the script,
+     * start at the beginning; if the script is empty, there is nothing to troubleshoot.
+     * @param script The script to display
+     * @param position The instruction number to start at (NOT an index into our list of items)
+     */
+    public void displayScript(Script script, int position) {
+        if (script.isEmpty()) {
+            finishTroubleshooting();
+        } else {
+            setTroubleshootingItems(script.getItems());
+            if (position < 1 || position > script.getItems().size()) {
+                position = 1;
+            }
+            displayItemAt(position);
+        }
+    }
+    
+    /**
+     * Get a new script request number. Every CoachingTask and BranchTask takes one when created;
+     * only the most recent one is allowed to display its result.
+     */
+    public int nextScriptRequest() {
+        return ++scriptRequest;
+    }
+    
+    /** Check whether a script request is still the most recent one */
+    public boolean isCurrentScriptRequest(int request) {
+        return request == scriptRequest;
+    }
+    
     // TODO: Probably get rid of this in favor of the single "currentItem"
     public void setTroubleshootingItems(List<Item> items) {
         this.tsItems = items;
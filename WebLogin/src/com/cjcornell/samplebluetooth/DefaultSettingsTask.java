@@ -7,16 +7,13 @@ package com.cjcornell.samplebluetooth;
 
 import java.io.IOException;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.cjcornell.samplebluetooth.data.AppSettings;
 import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.net.RestClient;
 
 import android.os.AsyncTask;
 import android.util.Log;
@@ -30,13 +27,11 @@ public class DefaultSettingsTask extends AsyncTask<Void, Void, JSONArray> {
      */
     @Override
     protected JSONArray doInBackground(Void... arg0) {
-        HttpClient httpClient = new DefaultHttpClient();
         String requestUrl = SETTINGS_URL + "/" + DataStore.getInstance().getBaseParameterString();
         Log.d(TAG, "Sending GET request at URL " + requestUrl);
 
         try {
-            HttpGet httpGet = new HttpGet(requestUrl);
-            JSONObject response = new JSONObject(httpClient.execute(httpGet, new BasicResponseHandler()));
+            JSONObject response = RestClient.getInstance().getConditional(requestUrl).getJSON();
                 
             Log.d(TAG, "Successfully obtained settings");
             if (response.has("body")) {
@@ -1,38 +1,44 @@
 /** CLASS: DownloadImageTask
- *   This class is used to download images used in troubleshooting.
+ *   This class is used to download images used in troubleshooting. Images come from the
+ *   ImageCache when they are there.
  */
 
 package com.cjcornell.samplebluetooth;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.widget.ImageView;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import com.cjcornell.samplebluetooth.net.Abortable;
 
-public class DownloadImageTask extends AsyncTask<String, Void, Bitmap> {
+public class DownloadImageTask extends AsyncTask<String, Void, Bitmap> implements Abortable {
     // The image variable to download to
     private ImageView image;
     
-    // The constructor simply sets the  image
+    // The size to decode the image at
+    private final int width, height;
+    
+    // The download in progress, so it can be aborted
+    private final ImageCache.Request request = new ImageCache.Request();
+    
+    // The constructor sets the image, and takes its size while we are still on the main thread
     public DownloadImageTask(ImageView image) {
         this.image = image;
+        this.width = BitmapDecoder.targetWidth(image);
+        this.height = BitmapDecoder.targetHeight(image);
     }
     
-    // Download the image
+    // Download the image, or get it from the cache
     protected Bitmap doInBackground(String... urls) {
         String url = urls[0];
-        Bitmap bmImage = null;
-        try {
-            InputStream in = new URL(url).openStream();
-            bmImage = BitmapFactory.decodeStream(in);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return bmImage;
+        if (isCancelled()) return null;
+        return ImageCache.getInstance().load(url, url, request, width, height);
+    }
+    
+    // Stop the download - the task has been cancelled, so the image will not be set
+    @Override
+    public void abort() {
+        request.abort();
     }
     
     // Finally, set the bitmap
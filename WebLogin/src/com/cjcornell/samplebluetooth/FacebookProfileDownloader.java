@@ -1,48 +1,65 @@
 /**
  * CLASS: FacebookProfileDownloader
- *   This class is an asynchronous task used to download Facebook profile pictures
+ *   This class is an asynchronous task used to download Facebook profile pictures and show them
+ *   in an ImageView. The view is tagged with the Facebook ID it is meant to show, so a picture that
+ *   arrives after the view moved on to someone else is not shown.
  */
 
 package com.cjcornell.samplebluetooth;
 
-import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import com.cjcornell.samplebluetooth.net.Abortable;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
-import android.util.Log;
-//Asynctas to just get profile pic will be extended soon. 
+import android.widget.ImageView;
 
 
-public class FacebookProfileDownloader extends AsyncTask<String, Void, Bitmap>
+public class FacebookProfileDownloader extends AsyncTask<String, Void, Bitmap> implements Abortable
 {
-
-    private static final String TAG = "Facebook downloader:";
+    // The view to show the picture in
+    private final ImageView image;
+    private String id;
+    
+    // The size to decode the picture at
+    private final int width, height;
+    
+    // The download in progress, so it can be aborted
+    private final ImageCache.Request request = new ImageCache.Request();
+    
+    /**
+     * Constructor
+     * @param image: The view to show the picture in - tag it with the Facebook ID first
+     */
+    public FacebookProfileDownloader(ImageView image) {
+        this.image = image;
+        this.width = BitmapDecoder.targetWidth(image);
+        this.height = BitmapDecoder.targetHeight(image);
+    }
 
     /**
-     * The task to run in the background - returns a Bitmap of the facebook picture
+     * The task to run in the background - returns a Bitmap of the facebook picture, from the
+     * ImageCache if it is there
      */
     @Override
     protected Bitmap doInBackground(String... params) 
     {
-        Bitmap picture = null;
-        String id = params[0];
-        URL imgURL= null;
-        try
-        {
-            // The Facebook picture URL is based on the passed Facebook id
-            imgURL = new URL("https://graph.facebook.com/"+id+"/picture?type=large");
-            picture = BitmapFactory.decodeStream(imgURL.openConnection().getInputStream());
-        }
-        catch (MalformedURLException e) {
-            Log.e(TAG, "Error with URL or Facebook userID.");
-        }
-        catch (IOException e) {
-            Log.e(TAG, "Error getting Profile Picture.");
-        }
-        return picture;
+        // The Facebook picture URL is based on the passed Facebook id
+        id = params[0];
+        if (isCancelled()) return null;
+        return ImageCache.getInstance().load(ImageCache.profileKey(id), ImageCache.profileUrl(id), request, width, height);
+    }
+    
+    // Stop the download - the task has been cancelled, so the picture will not be shown
+    @Override
+    public void abort() {
+        request.abort();
     }
     
+    /** Show the picture, if the view still wants this friend's picture */
+    @Override
+    protected void onPostExecute(Bitmap picture) {
+        if (picture != null && id.equals(image.getTag())) {
+            image.setImageBitmap(picture);
+        }
+    }
 }
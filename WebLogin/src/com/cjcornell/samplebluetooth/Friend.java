@@ -5,6 +5,9 @@
 
 package com.cjcornell.samplebluetooth;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import com.cjcornell.samplebluetooth.data.AppSettings;
 
 public class Friend {
@@ -35,6 +38,14 @@ public class Friend {
         this.details3 = details3;
     }
 
+    /** Constructor - from an entry of the nearby friends response */
+    public Friend(JSONObject json) throws JSONException {
+        this(json.getString("id"), json.getString("first_name"), json.getString("last_name"),
+                json.getString("email"), json.getDouble("distance"), json.getDouble("latitude"),
+                json.getDouble("longitude"), json.getString("details1"), json.getString("details2"),
+                json.getString("details3"));
+    }
+
     public Friend(String id, String firstname, String lastname, String email) {
         this.id = id;
         this.firstname = firstname;
@@ -115,6 +126,29 @@ public class Friend {
         this.details3 = details3;
     }
     
+    /**
+     * Get a copy of this friend at a new position. Friends handed to the UI are not modified, so
+     * a friend who moved is replaced by a copy.
+     */
+    public Friend movedTo(double distance, double latitude, double longitude) {
+        return new Friend(id, firstname, lastname, email, distance, latitude, longitude, details1, details2, details3);
+    }
+    
+    /**
+     * Check whether an entry of the nearby friends response has the same details as this friend,
+     * position aside - if so, the entry does not need a new Friend
+     */
+    public boolean hasProfile(JSONObject json) {
+        return id.equals(json.optString("id")) && firstname.equals(json.optString("first_name"))
+                && lastname.equals(json.optString("last_name")) && equal(email, json.optString("email"))
+                && equal(details1, json.optString("details1")) && equal(details2, json.optString("details2"))
+                && equal(details3, json.optString("details3"));
+    }
+    
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null || b.length() == 0 : a.equals(b);
+    }
+    
     /** 
      * toString
      *   The toString method will return the friend's name and the distance from the user in parentheses
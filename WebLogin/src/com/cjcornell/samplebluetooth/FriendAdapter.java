@@ -0,0 +1,110 @@
+/**
+ * CLASS: FriendAdapter
+ *   This is an ArrayAdapter used for the list of nearby friends. Each row shows the friend's profile
+ *   picture, if it is in the ImageCache, next to their name and distance.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.List;
+
+import com.cjcornell.samplebluetooth.data.AppSettings;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.TextView;
+
+public class FriendAdapter extends ArrayAdapter<Friend> {
+    private final Context context;
+    private final List<Friend> friends;
+    private final int textAppearance;
+
+    // The size profile pictures are cached at
+    private final int pictureWidth, pictureHeight;
+
+    /**
+     * Constructor
+     * @param textSize: The text size setting - see AppSettings.textSize
+     * @param pictureWidth, pictureHeight: The size profile pictures are cached at
+     */
+    public FriendAdapter(Context context, final List<Friend> objects, int textSize, int pictureWidth, int pictureHeight) {
+        super(context, R.layout.friend_item, objects);
+        this.context = context;
+        this.friends = objects;
+        this.pictureWidth = pictureWidth;
+        this.pictureHeight = pictureHeight;
+        if (textSize < 1) {
+            textAppearance = android.R.style.TextAppearance_Small;
+        } else if (textSize == 1) {
+            textAppearance = android.R.style.TextAppearance_Medium;
+        } else {
+            textAppearance = android.R.style.TextAppearance_Large;
+        }
+    }
+
+    /**
+     * The ViewHolder class will define what is in the view. In this case,
+     * the view consists of the profile picture and a TextView.
+     */
+    static class ViewHolder {
+        ImageView avatar;
+        TextView text;
+    }
+
+    /**
+     * Get the specified view
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            LayoutInflater inflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            convertView = inflater.inflate(R.layout.friend_item, parent, false);
+            ViewHolder vh = new ViewHolder();
+            vh.avatar = (ImageView)convertView.findViewById(R.id.friendAvatar);
+            vh.text = (TextView)convertView.findViewById(R.id.friendText);
+            vh.text.setTextAppearance(context, textAppearance);
+            vh.text.setTextColor(0xFFFFFFFF);
+            convertView.setTag(vh);
+        }
+
+        Friend friend = friends.get(position);
+        ViewHolder vh = (ViewHolder)convertView.getTag();
+        vh.text.setText(friend.toString());
+
+        // Only display the picture if we are in graphical mode
+        if (AppSettings.graphicalMode) {
+            vh.avatar.setVisibility(View.VISIBLE);
+            vh.avatar.setTag(friend.getId());
+            Bitmap picture = ImageCache.getInstance().getBitmap(ImageCache.profileKey(friend.getId()),
+                    pictureWidth, pictureHeight);
+            if (picture != null) {
+                vh.avatar.setImageBitmap(picture);
+            } else {
+                vh.avatar.setImageResource(R.drawable.profile_placeholder);
+            }
+        } else {
+            vh.avatar.setVisibility(View.GONE);
+        }
+
+        return convertView;
+    }
+
+    /** Show a profile picture that has just been loaded in the rows of the list showing that friend */
+    public void showAvatar(ListView list, String facebookId, Bitmap picture) {
+        for (int i = 0; i < list.getChildCount(); i++) {
+            Object tag = list.getChildAt(i).getTag();
+            if (tag instanceof ViewHolder) {
+                ImageView avatar = ((ViewHolder)tag).avatar;
+                if (facebookId.equals(avatar.getTag())) {
+                    avatar.setImageBitmap(picture);
+                }
+            }
+        }
+    }
+}
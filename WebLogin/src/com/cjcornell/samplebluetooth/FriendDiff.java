@@ -0,0 +1,60 @@
+/**
+ * CLASS: FriendDiff
+ *   This class is the difference between two nearby friends lists: who was added, who was
+ *   removed, and who is still there but moved.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class FriendDiff {
+    /** Friends in the new list but not the old one, in the order of the new list */
+    public final List<Friend> added = new ArrayList<Friend>();
+
+    /** IDs of the friends in the old list but not the new one */
+    public final List<String> removed = new ArrayList<String>();
+
+    /** Friends in both lists whose position changed, in the order of the new list */
+    public final List<Friend> moved = new ArrayList<Friend>();
+
+    private FriendDiff() {}
+
+    /**
+     * Compare a new list with the old one
+     * @param before: The old list, keyed by ID
+     * @param after: The new list
+     */
+    public static FriendDiff between(Map<String, Friend> before, List<Friend> after) {
+        FriendDiff diff = new FriendDiff();
+        Set<String> seen = new HashSet<String>(after.size() * 2);
+        for (Friend f : after) {
+            seen.add(f.getId());
+            Friend old = before.get(f.getId());
+            if (old == null) {
+                diff.added.add(f);
+            } else if (old.getLatitude() != f.getLatitude() || old.getLongitude() != f.getLongitude()) {
+                diff.moved.add(f);
+            }
+        }
+        for (String id : before.keySet()) {
+            if (!seen.contains(id)) {
+                diff.removed.add(id);
+            }
+        }
+        return diff;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && moved.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return added.size() + " added, " + removed.size() + " removed, " + moved.size() + " moved";
+    }
+}
@@ -5,13 +5,23 @@
 
 package com.cjcornell.samplebluetooth;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import com.cjcornell.samplebluetooth.data.AppSettings;
+import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.data.LocationQueue;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -24,7 +34,10 @@ import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
@@ -35,14 +48,72 @@ public class FriendFinderService extends Service implements LocationListener {
     public static final String TAG = "FriendFinderService";
     public static final String RESTART_GPS = "com.cjcornell.samplebluetooth.RESTART_GPS";
     public static final String SHUTDOWN_FFS = "com.cjcornell.samplebluetooth.SHUTDOWN_FFS";
-    public static List<Friend> friendList = new ArrayList<Friend>();
     public static final int NOTIFICATION_ID = 123123;
+    public static final String PUSH_URL = WebLogin.SERVER_ROOT + "/nearbystream";
+    
+    // Where the push channel connects - PUSH_URL unless pointed at a stand-in server with setPushUrl()
+    private static volatile String pushUrl = PUSH_URL;
+    
+    // Milliseconds after the push channel gave up before trying it again
+    private static final long PUSH_RETRY_DELAY = 1000 * 60 * 15;
+    
+    // Milliseconds before a friend who was announced may be announced again
+    private static final long ANNOUNCE_TTL = 1000 * 60 * 30;
     
     private ScheduledThreadPoolExecutor gpsRunner;
     private ScheduledFuture<?> gpsFuture;
+    // Whether polls should run at all - cleared by cancelGPS(), so a late hint or re-arm cannot restart them
+    private boolean polling = false;
     private Location location = null;
-    private long MIN_DISTANCE_CHANGE_FOR_UPDATES = 10; //10 meter default
-    private long MIN_TIME_BW_UPDATES = 1000 * 60 * 1;  //1 minute?
+    
+    // Decides how often to sample and upload the location, from how fast we are moving
+    private final AdaptiveSampler sampler = new AdaptiveSampler();
+    
+    // Recomputes friend distances from our own fixes between polls
+    private final ProximityEngine proximity = new ProximityEngine();
+    
+    // The last list we got, to tell which friends are new, and who was announced lately
+    private Map<String, Friend> lastFriends = new HashMap<String, Friend>();
+    private final AnnounceCache announceCache = new AnnounceCache(ANNOUNCE_TTL);
+    
+    // Keeps at most one GPSAsyncTask in flight
+    private final PollConflator polls = new PollConflator(new PollConflator.Poller() {
+        @Override
+        public void startPoll(Location fix, boolean upload, int poll) {
+            Log.v(TAG, "Starting GPSAsyncTask " + poll);
+            new GPSAsyncTask(FriendFinderService.this, upload, poll).executeOnExecutor(TaskExecutors.SYNC, fix);
+        }
+    });
+    
+    // Each poll is scheduled on its own, up to this fraction of the poll delay early or late, so clients
+    // that started together (or came back after an outage together) drift apart instead of polling in step
+    private static final double POLL_JITTER = 0.2;
+    // Longest random wait before the first poll, in milliseconds
+    private static final long MAX_FIRST_POLL_DELAY = 1000 * 10;
+    // Bounds on a delay the server asks for, in milliseconds
+    private static final long MIN_HINTED_DELAY = 1000 * 5;
+    private static final long MAX_HINTED_DELAY = 1000 * 60 * 30;
+    private final Random random = new Random();
+    
+    // Keeps the friend list in step with the server across polls
+    private FriendSync friendSync = new FriendSync();
+    
+    // Fixes we could not upload while offline
+    private LocationQueue locationQueue;
+    
+    // Pushes nearby friend changes to us - while it is connected, polls only upload our location
+    private volatile FriendPushChannel pushChannel;
+    private volatile boolean pushConnected = false;
+    private Handler handler;
+    
+    // Opens the push channel again some time after it gave up
+    private final Runnable retryPush = new Runnable() {
+        @Override
+        public void run() {
+            Log.v(TAG, "Trying the push channel again");
+            startPush();
+        }
+    };
     
     // This receiver detects messages to restart the GPS service and to shut down the FriendFinderService
     private BroadcastReceiver receiver = new BroadcastReceiver() {
@@ -50,18 +121,38 @@ public class FriendFinderService extends Service implements LocationListener {
         public void onReceive(Context context, Intent intent) {
             if (RESTART_GPS.equals(intent.getAction())) {
                 Log.v(TAG, "Got message to restart GPS");
+                if (AppSettings.friendFinder) {
+                    startPush();
+                } else {
+                    forgetFriends();
+                }
                 scheduleGPS();
             } else if (SHUTDOWN_FFS.equals(intent.getAction())) {
                 Log.v(TAG, "Shutting down FriendFinderService");
                 LocalBroadcastManager.getInstance(FriendFinderService.this).unregisterReceiver(receiver);
                 cancelGPS();
                 gpsRunner.shutdownNow();
+                polls.clear();
+                forgetFriends();
                 
                 stopSelf();
             }
         }
     };
     
+    // This receiver flushes the queued location fixes once we are back online
+    private BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isConnected()) {
+                Log.v(TAG, "Connectivity restored");
+                LocationBatchTask.flush(locationQueue);
+                // The push channel may have given up while we were offline
+                startPush();
+            }
+        }
+    };
+    
     /** Called on creation - used to set up everything */
     @Override
     public void onCreate() {
@@ -73,6 +164,12 @@ public class FriendFinderService extends Service implements LocationListener {
             return;
         }
         
+        locationQueue = new LocationQueue(this);
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        
+        handler = new Handler();
+        startPush();
+        
         // Set up the thrad pools and start the GPS service */
         gpsRunner = new ScheduledThreadPoolExecutor(1);
         gpsRunner.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
@@ -101,9 +198,140 @@ public class FriendFinderService extends Service implements LocationListener {
         Log.v(TAG, "Destroying FriendFinderService");
         //This line removes the icon from the notification bar
         ((NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE)).cancel(NOTIFICATION_ID);
+        if (locationQueue != null) {
+            unregisterReceiver(connectivityReceiver);
+        }
+        stopPush();
         super.onDestroy();
     }
     
+    /**
+     * Point the push channel at another server, such as a local stand-in for testing. Takes effect the
+     * next time the channel connects.
+     * @param url: The stream URL, without the user parameters - null for PUSH_URL
+     */
+    public static void setPushUrl(String url) {
+        pushUrl = url != null ? url : PUSH_URL;
+    }
+    
+    /**
+     * Open the push channel for nearby friend changes, if the friend finder is on and it is not open
+     * already. A channel that gave up is replaced by a new one.
+     */
+    private void startPush() {
+        if (!AppSettings.friendFinder) return;
+        if (pushChannel != null && pushChannel.isRunning()) return;
+        stopPush();
+        PushListener listener = new PushListener();
+        FriendPushChannel channel = new FriendPushChannel(new FriendPushChannel.UrlSource() {
+            @Override
+            public String getUrl() {
+                String url = pushUrl + "/" + DataStore.getInstance().getBaseParameterString();
+                String token = friendSync.getToken();
+                if (token != null) {
+                    try {
+                        url += "?token=" + URLEncoder.encode(token, "UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        // Ask for the full list instead
+                    }
+                }
+                return url;
+            }
+        }, listener);
+        listener.channel = channel;
+        synchronized (this) {
+            pushChannel = channel;
+        }
+        channel.start();
+    }
+    
+    /**
+     * Listens to one push channel. A channel that was stopped or replaced may still call back from its
+     * thread - those callbacks are ignored, so they cannot overwrite the state of the current channel.
+     */
+    private class PushListener implements FriendPushChannel.Listener {
+        private FriendPushChannel channel;
+        
+        @Override
+        public void onConnected() {
+            synchronized (FriendFinderService.this) {
+                if (channel != pushChannel) return;
+                pushConnected = true;
+            }
+        }
+        
+        @Override
+        public void onUpdate(JSONObject update) {
+            if (channel != pushChannel) return;
+            try {
+                final ArrayList<Friend> friends = friendSync.update(update);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (AppSettings.friendFinder && channel == pushChannel) {
+                            gotFriends(friends);
+                        }
+                    }
+                });
+            } catch (JSONException e) {
+                Log.e(TAG, "Bad nearby friends update: " + e.toString());
+            }
+        }
+        
+        @Override
+        public void onDisconnected() {
+            synchronized (FriendFinderService.this) {
+                if (channel != pushChannel) return;
+                pushConnected = false;
+            }
+        }
+        
+        @Override
+        public void onUnavailable() {
+            synchronized (FriendFinderService.this) {
+                if (channel != pushChannel) return;
+                pushConnected = false;
+                // Polling takes over - try pushing again later, in case the server was only down
+                handler.postDelayed(retryPush, PUSH_RETRY_DELAY);
+            }
+        }
+    }
+    
+    /** Close the push channel - polls go back to fetching nearby friends */
+    private void stopPush() {
+        FriendPushChannel channel;
+        synchronized (this) {
+            channel = pushChannel;
+            pushChannel = null;
+            pushConnected = false;
+            if (handler != null) {
+                handler.removeCallbacks(retryPush);
+            }
+        }
+        if (channel != null) {
+            channel.stop();
+        }
+    }
+    
+    /**
+     * The friend finder was turned off, or the service is shutting down: close the push channel, forget
+     * the friends we had, and publish an empty list so the UI stops showing them
+     */
+    private void forgetFriends() {
+        stopPush();
+        friendSync.reset();
+        proximity.setFriends(new ArrayList<Friend>());
+        lastFriends = new HashMap<String, Friend>();
+        if (!FriendStore.getInstance().getSnapshot().isEmpty()) {
+            FriendStore.getInstance().clear();
+        }
+    }
+    
+    /** Whether nearby friend changes are currently being pushed to us */
+    public boolean isPushConnected() {
+        return pushConnected;
+    }
+    
     /** Used to schedule the GPS service, but not start it right away. */
     public void scheduleGPS() {
         scheduleGPS(false);
@@ -120,83 +348,223 @@ public class FriendFinderService extends Service implements LocationListener {
         String bestProvider = lm.getBestProvider(new Criteria(), true);
         location = lm.getLastKnownLocation(bestProvider);
 		
+        requestLocationUpdates(lm);
+        
+        synchronized (this) {
+            polling = true;
+        }
+        
+        // Schedule the first GPS update - right away (give or take a few seconds), or a jittered poll delay from now
+        if (startRightAway && location != null) {
+            schedulePoll((long)(random.nextDouble() * MAX_FIRST_POLL_DELAY));
+        } else {
+            schedulePoll(nextPollDelay());
+        }
+    }
+    
+    /** Ask the providers for updates as often as the sampler wants them - replaces any earlier request */
+    private void requestLocationUpdates(LocationManager lm) {
+        long minTime = sampler.getMinTime();
+        float minDistance = sampler.getMinDistance();
         if (lm.getProvider(LocationManager.GPS_PROVIDER) != null) {
-            lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, MIN_TIME_BW_UPDATES,
-                    MIN_DISTANCE_CHANGE_FOR_UPDATES, this);
+            lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, minTime, minDistance, this);
         }
         if (lm.getProvider(LocationManager.NETWORK_PROVIDER) != null) {
-            lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, MIN_TIME_BW_UPDATES,
-                    MIN_DISTANCE_CHANGE_FOR_UPDATES, this);
+            lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, minTime, minDistance, this);
         }
-        
-        if (gpsFuture != null) {
-            gpsFuture.cancel(true);
-        }
-        
-        // Schedule the GPS update. The delay is derived from the current application setting "gpsTimeDelay"
-        long delay = (long)(AppSettings.gpsTimeDelay * 1000 * 60); // This is in minutes * 1000 due to the "* 60"
-        gpsFuture = gpsRunner.scheduleAtFixedRate(new Runnable() {
-            @Override
-            public void run() {
-                Log.v(TAG, "Starting GPSAsyncTask");
-                if (location != null) {
-                    new GPSAsyncTask(FriendFinderService.this).execute(location);
-                } else {
-                    Log.w(TAG, "No location found");
+    }
+    
+    /** The poll - it schedules the next one before uploading */
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FriendFinderService.this) {
+                if (!polling) return;
+            }
+            schedulePoll(nextPollDelay());
+            if (location == null) {
+                Log.w(TAG, "No location found");
+            } else if (!isConnected()) {
+                // Do not wake the radio just to fail - keep the fix until we are back online
+                Log.v(TAG, "Offline - queueing location");
+                queueLocation(location);
+            } else {
+                LocationBatchTask.flush(locationQueue);
+                boolean upload = sampler.shouldUpload(location, System.currentTimeMillis());
+                if (!upload && (!AppSettings.friendFinder || pushConnected)) {
+                    Log.v(TAG, "Not moved since the last upload - skipping poll");
+                    return;
                 }
+                polls.submit(location, upload);
             }
-        }, startRightAway && location != null ? 0 : delay, delay, TimeUnit.MILLISECONDS);
+        }
+    };
+    
+    /**
+     * Get the delay until the next poll: the current application setting "gpsTimeDelay", stretched or shrunk
+     * for how fast we are moving, and randomly moved up to POLL_JITTER of itself either way
+     */
+    private long nextPollDelay() {
+        long delay = (long)(AppSettings.gpsTimeDelay * 1000 * 60); // This is in minutes * 1000 due to the "* 60"
+        delay = (long)(delay * sampler.getPollFactor());
+        double jitter = (random.nextDouble() * 2 - 1) * POLL_JITTER;
+        return Math.max(0, (long)(delay * (1 + jitter)));
+    }
+    
+    /** Replace the pending poll with one after the given delay, in milliseconds - unless polling was cancelled */
+    private synchronized void schedulePoll(long delay) {
+        if (!polling || gpsRunner.isShutdown()) return;
+        if (gpsFuture != null) {
+            gpsFuture.cancel(false);
+        }
+        gpsFuture = gpsRunner.schedule(poll, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * The server told us when to poll next, with a Retry-After header or a nextPoll field. The pending
+     * poll is moved to that time, plus a little jitter so clients told the same time do not all come
+     * back at once.
+     * @param delay: The delay the server asked for, in milliseconds
+     */
+    public void hintNextPoll(long delay) {
+        delay = Math.min(MAX_HINTED_DELAY, Math.max(MIN_HINTED_DELAY, delay));
+        delay += (long)(random.nextDouble() * delay * POLL_JITTER);
+        Log.v(TAG, "Server asked for the next poll in " + delay + " ms");
+        schedulePoll(delay);
     }
     
     /** Cancel the GPS updater */
     public void cancelGPS() {
-        if (gpsFuture != null) {
-            gpsFuture.cancel(true);
-            gpsFuture = null;
+        synchronized (this) {
+            polling = false;
+            if (gpsFuture != null) {
+                gpsFuture.cancel(true);
+                gpsFuture = null;
+            }
         }
         
         LocationManager lm = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
         lm.removeUpdates(this);
     }
     
+    /** Get the state of the nearby friends sync with the server */
+    public FriendSync getFriendSync() {
+        return friendSync;
+    }
+    
+    /** Called by GPSAsyncTask when it is done, to start the poll waiting for it */
+    public void pollFinished(int poll) {
+        polls.finished(poll);
+    }
+    
+    /** Get the poll counters: how many polls were dropped, and how many were replaced by a newer one */
+    public int getDroppedPolls() {
+        return polls.getDropped();
+    }
+    
+    public int getCoalescedPolls() {
+        return polls.getCoalesced();
+    }
+    
+    /** Called by GPSAsyncTask once the server has a fix, so the next polls know it need not be sent again */
+    public void locationUploaded(Location fix) {
+        sampler.markUploaded(fix, System.currentTimeMillis());
+    }
+    
+    /** Queue a location fix that could not be uploaded */
+    public void queueLocation(Location location) {
+        locationQueue.add(location);
+    }
+    
+    /** Check whether we currently have a network connection */
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+    
     /** 
      * gotFriends
-     *   This method should be called when we have retrieved friends. It will announce friends nearby 
-     *   and display a list of them in the CyranoActivity.
+     *   This method should be called when we have retrieved friends. It will announce the friends who
+     *   newly came nearby and display a list of the closest in the CyranoActivity.
+     *   
+     * @param friends: Every nearby friend, in any order
      */
     public void gotFriends(List<Friend> friends) {
-        friendList = friends;
+        FriendDiff diff = FriendDiff.between(lastFriends, friends);
+        Log.v(TAG, "Friends changed: " + diff);
+        lastFriends = new HashMap<String, Friend>(friends.size() * 2);
+        for (Friend f : friends) {
+            lastFriends.put(f.getId(), f);
+        }
         
-        // Announce friends, if the setting is enabled
+        proximity.setFriends(friends);
+        
+        // Announce the new arrivals we have not announced lately, if the setting is enabled
         if (AppSettings.friendAudio) {
-            announceMultipleFriends(friends);
+            List<Friend> arrivals = new ArrayList<Friend>();
+            for (Friend f : diff.added) {
+                if (!announceCache.isRecent(f.getId())) {
+                    arrivals.add(f);
+                }
+            }
+            if (!arrivals.isEmpty()) {
+                announceMultipleFriends(friends.size(), proximity.closest(arrivals, AppSettings.maxFriends));
+            }
+        }
+        
+        showFriends(proximity.closest(ProximityEngine.MAX_LISTED));
+    }
+    
+    /** Display the friends in the CyranoActivity - the list, closest first, is handed over, not copied */
+    private void showFriends(List<Friend> friends) {
+        FriendStore.getInstance().publish(friends);
+    }
+    
+    /**
+     * announceArrivals
+     *   Announce the friends who just came within ProximityEngine.ANNOUNCE_DISTANCE of us, skipping
+     *   those announced lately
+     *   
+     * @param friends: The friends to announce, closest first
+     */
+    private void announceArrivals(List<Friend> friends) {
+        List<String> phrases = new ArrayList<String>();
+        List<Integer> pauses = new ArrayList<Integer>();
+        for (Friend friend : friends) {
+            if (phrases.size() >= AppSettings.maxFriends) break;
+            if (announceCache.isRecent(friend.getId())) continue;
+            phrases.add(getString(R.string.friendWithinMessage, friend.getName(),
+                    ProximityEngine.ANNOUNCE_DISTANCE));
+            pauses.add(1);
+            announceCache.markAnnounced(friend.getId());
         }
         
-        // Display the friends in the CyranoActivity
-        Intent i = new Intent(CyranoActivity.DISPLAY_FRIENDS);
-        i.putExtra("friends", friends.toArray(new Friend[friends.size()]));
-        LocalBroadcastManager.getInstance(this).sendBroadcast(i);
+        if (!phrases.isEmpty()) {
+            AudioMethods.playInstructions(this, phrases, pauses);
+        }
     }
     
     /**
      * announceMultipleFriends
      *   Announce multiple friends using textToSpeech
      *   
-     * @param friends: The friends to announce
+     * @param total: The number of friends nearby
+     * @param arrivals: The friends to announce by name - the closest maxFriends of the new arrivals
      */
-    private void announceMultipleFriends(final List<Friend> friends) {
-        int numFriends = Math.min(AppSettings.maxFriends, friends.size());
+    private void announceMultipleFriends(int total, final List<Friend> arrivals) {
         List<String> phrases = new ArrayList<String>();
         List<Integer> pauses = new ArrayList<Integer>();
-        if (friends.size() == 1) {
+        if (total == 1) {
             phrases.add(getString(R.string.singleFriendsMessage));
         } else {
-            phrases.add(getString(R.string.multipleFriendsMessage, friends.size()));
+            phrases.add(getString(R.string.multipleFriendsMessage, total));
         }
         pauses.add(AppSettings.pauseLength);
-        for (int i = 0; i < numFriends; i++) {
-            phrases.add(getString(R.string.singleFriendMessage, friends.get(i).getName()));
+        for (Friend friend : arrivals) {
+            phrases.add(getString(R.string.singleFriendMessage, friend.getName()));
             pauses.add(1);
+            announceCache.markAnnounced(friend.getId());
         }
         
         AudioMethods.playInstructions(this, phrases, pauses);
@@ -210,9 +578,30 @@ public class FriendFinderService extends Service implements LocationListener {
     public void onLocationChanged(Location location) {
         if (this.location == null) {
             // If it's the first location we've gotten, run off the AsyncTask right away.
-            new GPSAsyncTask(FriendFinderService.this).execute(location);
+            polls.submit(location, sampler.shouldUpload(location, System.currentTimeMillis()));
         }
         this.location = location;
+        
+        // Bring the friend distances up to date without waiting for the next poll
+        if (AppSettings.friendFinder) {
+            ProximityEngine.Update update = proximity.onLocation(location.getLatitude(), location.getLongitude());
+            if (update != null) {
+                if (AppSettings.friendAudio && !update.arrived.isEmpty()) {
+                    announceArrivals(update.arrived);
+                }
+                // The same friends, re-ranked - refresh the list without popping it up over whatever is showing
+                FriendStore.getInstance().publishDistances(update.friends);
+            }
+        }
+        
+        int oldMode = sampler.getMode();
+        if (sampler.onLocation(location)) {
+            // Sample at the new rate, and if we sped up, do not wait out a poll delay meant for standing still
+            requestLocationUpdates((LocationManager)getSystemService(Context.LOCATION_SERVICE));
+            if (sampler.getMode() > oldMode) {
+                schedulePoll(nextPollDelay());
+            }
+        }
     }
     @Override
     public void onProviderDisabled(String arg0) {}
@@ -0,0 +1,248 @@
+/**
+ * CLASS: FriendIndex
+ *   This class is a spatial index over the rows of a FriendTable. Rows are bucketed by geohash cell
+ *   (CELL_BITS bits of latitude and of longitude, interleaved - cells are roughly 150 m by 300 m at
+ *   the equator), so the nearest friends to a point, or the friends within a radius of it, are
+ *   found by looking at the cells around the point instead of at every friend. The buckets are one
+ *   sorted array of cell and row pairs, so queries allocate nothing. Rebuild the index whenever the
+ *   table's rows change. Not thread-safe - the owner must synchronize.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.Arrays;
+
+public class FriendIndex {
+    // Bits of latitude and of longitude in a cell's geohash
+    private static final int CELL_BITS = 17;
+    private static final int CELLS = 1 << CELL_BITS;
+    private static final double CELL_HEIGHT = 180.0 / CELLS;
+    private static final double CELL_WIDTH = 360.0 / CELLS;
+    private static final double METERS_PER_DEGREE = Math.PI * GeoUtils.EARTH_RADIUS / 180;
+
+    // An entry is a cell's geohash shifted left by ROW_BITS, with the row in the low bits
+    private static final int ROW_BITS = 28;
+    private static final long ROW_MASK = (1L << ROW_BITS) - 1;
+
+    private final FriendTable table;
+    private int size = 0;
+
+    // Entries sorted by cell, then the distinct cells and where each one's entries start
+    private long[] entries = new long[16];
+    private long[] cells = new long[16];
+    private int[] starts = new int[17];
+    private int cellCount = 0;
+
+    // Scratch for the cells of a ring
+    private int[] ring = new int[64];
+
+    public FriendIndex(FriendTable table) {
+        this.table = table;
+    }
+
+    /** Bucket the table's rows again - call after rows were added, removed or moved */
+    public void rebuild() {
+        size = table.size();
+        if (entries.length < size) {
+            entries = new long[size];
+            cells = new long[size];
+            starts = new int[size + 1];
+        }
+        for (int row = 0; row < size; row++) {
+            long cell = geohash(latIndex(table.getLatitude(row)), lonIndex(table.getLongitude(row)));
+            entries[row] = (cell << ROW_BITS) | row;
+        }
+        Arrays.sort(entries, 0, size);
+        cellCount = 0;
+        for (int i = 0; i < size; i++) {
+            long cell = entries[i] >>> ROW_BITS;
+            if (cellCount == 0 || cells[cellCount - 1] != cell) {
+                cells[cellCount] = cell;
+                starts[cellCount] = i;
+                cellCount++;
+            }
+        }
+        starts[cellCount] = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the k rows closest to a point, searching rings of cells outward from the point's cell until
+     * no unsearched cell can hold anyone closer than the k-th row found. If the friends are so spread
+     * out that the rings would cover many more cells than hold friends, every row is checked. The
+     * distance of each row looked at is set to its distance from the point.
+     * @param out: Receives the rows, closest first - must hold at least k entries
+     * @return The number of rows found, min(k, size)
+     */
+    public int nearest(double lat, double lon, int k, int[] out) {
+        if (k <= 0 || size == 0) return 0;
+        k = Math.min(k, size);
+        int latIdx = latIndex(lat);
+        int lonIdx = lonIndex(lon);
+        int count = 0;
+        int seen = 0;
+        for (int r = 0; seen < size; r++) {
+            if (count == k && outsideBound(lat, lon, latIdx, r) >= table.getDistance(out[0])) break;
+            long area = (2L * r + 1) * (2L * r + 1);
+            if (area > 4L * cellCount + 64) {
+                count = 0;
+                for (int row = 0; row < size; row++) {
+                    measure(row, lat, lon);
+                    count = table.offer(out, count, k, row);
+                }
+                break;
+            }
+            int found = ring(latIdx, lonIdx, r);
+            for (int c = 0; c < found; c++) {
+                for (int i = starts[ring[c]]; i < starts[ring[c] + 1]; i++) {
+                    int row = (int) (entries[i] & ROW_MASK);
+                    measure(row, lat, lon);
+                    count = table.offer(out, count, k, row);
+                    seen++;
+                }
+            }
+        }
+        table.sortHeap(out, count);
+        return count;
+    }
+
+    /**
+     * Find the rows within a radius of a point. The distance of each row looked at is set to its
+     * distance from the point.
+     * @param radius: The radius, in meters
+     * @param out: Receives the rows, in no particular order - must hold at least size() entries
+     * @return The number of rows found
+     */
+    public int within(double lat, double lon, double radius, int[] out) {
+        if (size == 0) return 0;
+        double dLat = radius / METERS_PER_DEGREE;
+        double cos = Math.cos(Math.toRadians(Math.min(89.9, Math.abs(lat) + dLat)));
+        double dLon = Math.min(180, dLat / Math.max(cos, 1e-6));
+        int south = latIndex(lat - dLat), north = latIndex(lat + dLat);
+        int west = (int) Math.floor((lon - dLon + 180) / CELL_WIDTH);
+        int east = (int) Math.floor((lon + dLon + 180) / CELL_WIDTH);
+        if (east - west >= CELLS) {
+            west = 0;
+            east = CELLS - 1;
+        }
+        int count = 0;
+        if ((long)(north - south + 1) * (east - west + 1) > 4L * cellCount + 64) {
+            // The box covers many more cells than hold friends - just check every row
+            for (int row = 0; row < size; row++) {
+                if (measure(row, lat, lon) <= radius) {
+                    out[count++] = row;
+                }
+            }
+            return count;
+        }
+        for (int y = south; y <= north; y++) {
+            for (int x = west; x <= east; x++) {
+                int cell = find(y, x);
+                if (cell < 0) continue;
+                for (int i = starts[cell]; i < starts[cell + 1]; i++) {
+                    int row = (int) (entries[i] & ROW_MASK);
+                    if (measure(row, lat, lon) <= radius) {
+                        out[count++] = row;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /** Set a row's distance to its distance from a point, and return it */
+    private double measure(int row, double lat, double lon) {
+        double distance = GeoUtils.distance(lat, lon, table.getLatitude(row), table.getLongitude(row));
+        table.setDistance(row, distance);
+        return distance;
+    }
+
+    /**
+     * Find the non-empty cells on the square ring the given number of cells out from a cell
+     * @return The number of cells found - their indexes are in the ring array
+     */
+    private int ring(int latIdx, int lonIdx, int r) {
+        int found = 0;
+        // Longitude wraps around, so a ring never reaches more than half the world either way
+        int half = CELLS / 2;
+        for (int dy = -r; dy <= r; dy++) {
+            int y = latIdx + dy;
+            if (y < 0 || y >= CELLS) continue;
+            if (dy == -r || dy == r) {
+                for (int dx = -Math.min(r, half); dx <= Math.min(r, half - 1); dx++) {
+                    found = add(found, y, lonIdx + dx);
+                }
+            } else if (r < half) {
+                found = add(found, y, lonIdx - r);
+                found = add(found, y, lonIdx + r);
+            } else if (r == half) {
+                found = add(found, y, lonIdx - r);
+            }
+        }
+        return found;
+    }
+
+    private int add(int found, int latIdx, int lonIdx) {
+        int cell = find(latIdx, lonIdx);
+        if (cell < 0) return found;
+        if (found == ring.length) {
+            ring = Arrays.copyOf(ring, found * 2);
+        }
+        ring[found] = cell;
+        return found + 1;
+    }
+
+    /** Get the index of a cell in cells, or -1 if no row is in it */
+    private int find(int latIdx, int lonIdx) {
+        int cell = Arrays.binarySearch(cells, 0, cellCount, geohash(latIdx, wrap(lonIdx)));
+        return cell >= 0 ? cell : -1;
+    }
+
+    /**
+     * Get a lower bound, in meters, on the distance from a point to anything in the rings from the
+     * given one outward - the distance to the edge of the box made of the rings inside it
+     */
+    private static double outsideBound(double lat, double lon, int latIdx, int r) {
+        if (r == 0) return 0;
+        int inner = r - 1;
+        double south = (latIdx - inner) * CELL_HEIGHT - 90;
+        double north = (latIdx + inner + 1) * CELL_HEIGHT - 90;
+        double toLatEdge = Math.min(lat - south, north - lat) * METERS_PER_DEGREE;
+        if (south <= -90 && north >= 90) {
+            toLatEdge = Double.MAX_VALUE;
+        }
+
+        double lonOffset = (lon + 180) - Math.floor((lon + 180) / CELL_WIDTH) * CELL_WIDTH;
+        double toLonEdge = Math.min(lonOffset + inner * CELL_WIDTH, (inner + 1) * CELL_WIDTH - lonOffset);
+        // Meridians are closest together at the latitude of the box farthest from the equator
+        double maxLat = Math.min(90, Math.max(Math.abs(south), Math.abs(north)));
+        toLonEdge *= METERS_PER_DEGREE * Math.cos(Math.toRadians(maxLat));
+        return Math.min(toLatEdge, toLonEdge);
+    }
+
+    private static int latIndex(double lat) {
+        int y = (int) Math.floor((lat + 90) / CELL_HEIGHT);
+        return Math.max(0, Math.min(CELLS - 1, y));
+    }
+
+    private static int lonIndex(double lon) {
+        return wrap((int) Math.floor((lon + 180) / CELL_WIDTH));
+    }
+
+    private static int wrap(int lonIdx) {
+        return ((lonIdx % CELLS) + CELLS) % CELLS;
+    }
+
+    /** Interleave the cell's longitude and latitude bits, longitude first, the way geohashes are built */
+    static long geohash(int latIdx, int lonIdx) {
+        long hash = 0;
+        for (int bit = CELL_BITS - 1; bit >= 0; bit--) {
+            hash = (hash << 1) | ((lonIdx >> bit) & 1);
+            hash = (hash << 1) | ((latIdx >> bit) & 1);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * CLASS: FriendPushChannel
+ *   This class keeps a server-sent events stream open to the server, which pushes nearby friend
+ *   changes the moment they happen instead of waiting for our next poll. Each event carries the
+ *   same JSON as a nearby friends poll response. The channel reconnects with a growing delay when
+ *   the stream drops, and gives up (so the caller can rely on polling) if the server does not
+ *   offer the stream or keeps failing. A stream the server closes soon after opening counts as a
+ *   failure, so a server that accepts and hangs up is not hammered with reconnects.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+public class FriendPushChannel {
+    private static final String TAG = "FriendPushChannel";
+
+    // Milliseconds without any data (the server sends comments as heartbeats) before reconnecting
+    private static final int READ_TIMEOUT = 1000 * 90;
+    private static final int CONNECT_TIMEOUT = 1000 * 15;
+
+    // Reconnect delays, in milliseconds
+    private static final long MIN_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 1000 * 60;
+
+    // Failed connections in a row before giving up
+    private static final int MAX_FAILURES = 5;
+
+    // Milliseconds a stream must stay open before its end is taken as a normal drop, starting the backoff over
+    private static final long MIN_CONNECTED_TIME = 1000 * 30;
+
+    /** Gets told what happens on the channel. All methods are called on the channel's thread. */
+    public interface Listener {
+        /** The stream is open - changes will now be pushed */
+        public void onConnected();
+
+        /** A nearby friends update arrived */
+        public void onUpdate(JSONObject update);
+
+        /** The stream dropped - the channel will try to reconnect */
+        public void onDisconnected();
+
+        /** The channel has given up and stopped - fall back to polling. Start a new channel to try again. */
+        public void onUnavailable();
+    }
+
+    /** Gives the URL to connect to - asked on every connection, so it can carry the latest sync token */
+    public interface UrlSource {
+        public String getUrl();
+    }
+
+    private final UrlSource urlSource;
+    private final Listener listener;
+    private volatile boolean running = false;
+    private volatile HttpURLConnection connection;
+    private Thread thread;
+
+    /**
+     * Constructor
+     * @param urlSource: Gives the stream URL - point it at a local stand-in server to test the channel
+     * @param listener: Gets told about connections and updates
+     */
+    public FriendPushChannel(UrlSource urlSource, Listener listener) {
+        this.urlSource = urlSource;
+        this.listener = listener;
+    }
+
+    /** Open the channel on its own thread */
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loop();
+            }
+        }, "cyrano-push");
+        thread.start();
+    }
+
+    /** Close the channel */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        HttpURLConnection c = connection;
+        if (c != null) {
+            c.disconnect();
+        }
+        thread.interrupt();
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Keep the stream open, reconnecting after failures, until stopped or given up */
+    private void loop() {
+        int failures = 0;
+        long delay = MIN_RETRY_DELAY;
+        while (running) {
+            try {
+                long connected = stream();
+                if (connected < 0) {
+                    failures = MAX_FAILURES;
+                } else if (connected >= MIN_CONNECTED_TIME) {
+                    // We were connected for a while - start the backoff over
+                    failures = 0;
+                    delay = MIN_RETRY_DELAY;
+                } else {
+                    Log.v(TAG, "Stream closed after " + connected + " ms");
+                    failures++;
+                }
+            } catch (IOException e) {
+                if (!running) break;
+                Log.v(TAG, "Stream failed: " + e.toString());
+                failures++;
+            }
+
+            if (failures >= MAX_FAILURES) {
+                Log.v(TAG, "Push unavailable - falling back to polling");
+                running = false;
+                listener.onUnavailable();
+                break;
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Connect and dispatch events until the stream ends
+     * @return How long the stream was open, in milliseconds, or -1 if the server does not offer the stream
+     */
+    private long stream() throws IOException {
+        connection = (HttpURLConnection) new URL(urlSource.getUrl()).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestProperty("Accept", "text/event-stream");
+            connection.setRequestProperty("Cache-Control", "no-cache");
+
+            int status = connection.getResponseCode();
+            String type = connection.getContentType();
+            if (status != HttpURLConnection.HTTP_OK || type == null || !type.startsWith("text/event-stream")) {
+                if (status >= 500 && status != HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                    throw new IOException("Server error " + status);
+                }
+                Log.v(TAG, "Server does not offer a push stream (" + status + ", " + type + ")");
+                return -1;
+            }
+
+            Log.v(TAG, "Push stream connected");
+            long opened = SystemClock.elapsedRealtime();
+            listener.onConnected();
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                StringBuilder data = new StringBuilder();
+                String line;
+                while (running && (line = in.readLine()) != null) {
+                    if (line.length() == 0) {
+                        // A blank line ends the event
+                        dispatch(data);
+                        data.setLength(0);
+                    } else if (line.startsWith("data:")) {
+                        if (data.length() > 0) {
+                            data.append('\n');
+                        }
+                        data.append(line.substring(line.startsWith("data: ") ? 6 : 5));
+                    }
+                    // Comments (heartbeats), event names and ids are ignored
+                }
+                in.close();
+            } catch (IOException e) {
+                Log.v(TAG, "Push stream dropped: " + e.toString());
+            }
+            listener.onDisconnected();
+            return SystemClock.elapsedRealtime() - opened;
+        } finally {
+            connection.disconnect();
+            connection = null;
+        }
+    }
+
+    /** Hand a complete event to the listener */
+    private void dispatch(StringBuilder data) {
+        if (data.length() == 0) return;
+        try {
+            listener.onUpdate(new JSONObject(data.toString()));
+        } catch (JSONException e) {
+            Log.e(TAG, "Bad push event: " + e.toString());
+        }
+    }
+}
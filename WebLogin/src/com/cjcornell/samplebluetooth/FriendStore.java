@@ -0,0 +1,156 @@
+/**
+ * CLASS: FriendStore
+ *   This class holds the current nearby friends list and tells whoever is interested when it
+ *   changes. Each list is published as an immutable, numbered snapshot, and is handed over as is -
+ *   nothing is copied or serialized on the way to the UI. Listeners are called on the main thread,
+ *   and only ever with the latest snapshot: if several lists are published before the main thread
+ *   gets round to it, the older ones are skipped. A listener that was away (an activity that was
+ *   paused) can compare the current snapshot's version with the last one it rendered. Lists that only
+ *   re-measure the friends of the last full list are published with publishDistances(), and keep that
+ *   list's list version, so listeners can tell them apart from lists with new friends in them.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+public class FriendStore {
+    private static final String TAG = "FriendStore";
+
+    private static FriendStore instance = new FriendStore();
+
+    /** A published friends list. Never changes once published. */
+    public static class Snapshot {
+        private final long version;
+        private final long listVersion;
+        private final List<Friend> friends;
+
+        private Snapshot(long version, long listVersion, List<Friend> friends) {
+            this.version = version;
+            this.listVersion = listVersion;
+            this.friends = friends;
+        }
+
+        /** Get the number of the snapshot - later snapshots have higher numbers */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the version of the last snapshot published with publish(). Snapshots published with
+         * publishDistances() since then share it: they hold the same friends, only re-ranked.
+         */
+        public long getListVersion() {
+            return listVersion;
+        }
+
+        /** Get the friends, closest first. The list is read-only. */
+        public List<Friend> getFriends() {
+            return friends;
+        }
+
+        public boolean isEmpty() {
+            return friends.isEmpty();
+        }
+    }
+
+    /** Gets told about new snapshots, on the main thread */
+    public interface Listener {
+        public void onFriendsChanged(Snapshot snapshot);
+    }
+
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<Snapshot>(new Snapshot(0, 0, Collections.<Friend>emptyList()));
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatchPending.set(false);
+            Snapshot snapshot = current.get();
+            for (Listener listener : listeners) {
+                listener.onFriendsChanged(snapshot);
+            }
+        }
+    };
+
+    protected FriendStore() {}
+
+    public static FriendStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Publish a new friends list. The list is taken over, not copied - the caller must not change it
+     * afterwards. Can be called from any thread.
+     * @return The new snapshot
+     */
+    public Snapshot publish(List<Friend> friends) {
+        return publish(friends, false);
+    }
+
+    /**
+     * Publish the friends of the last list with new distances and ranks - nobody came or went. Listeners
+     * can refresh what they show without treating it as news. Can be called from any thread.
+     * @return The new snapshot
+     */
+    public Snapshot publishDistances(List<Friend> friends) {
+        return publish(friends, true);
+    }
+
+    private Snapshot publish(List<Friend> friends, boolean distancesOnly) {
+        List<Friend> readOnly = Collections.unmodifiableList(friends);
+        Snapshot previous, next;
+        do {
+            previous = current.get();
+            long version = previous.version + 1;
+            next = new Snapshot(version, distancesOnly ? previous.listVersion : version, readOnly);
+        } while (!current.compareAndSet(previous, next));
+
+        // One dispatch at a time - it picks up whatever is latest when it runs
+        if (dispatchPending.compareAndSet(false, true)) {
+            mainHandler.post(dispatch);
+        } else {
+            Log.v(TAG, "Conflated friends snapshot " + previous.version);
+        }
+        return next;
+    }
+
+    /** Publish an empty list, e.g. when the friend finder is turned off */
+    public Snapshot clear() {
+        return publish(new ArrayList<Friend>());
+    }
+
+    /** Get the latest snapshot */
+    public Snapshot getSnapshot() {
+        return current.get();
+    }
+
+    /** Check whether a snapshot newer than the given version was published - cheap enough for every frame */
+    public boolean hasChangedSince(long version) {
+        return current.get().version != version;
+    }
+
+    /** Start telling a listener about new snapshots. Call on the main thread. */
+    public void register(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /** Stop telling a listener about new snapshots */
+    public void unregister(Listener listener) {
+        listeners.remove(listener);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * CLASS: FriendSync
+ *   This class keeps the nearby friends list in step with the server. The server may answer a poll
+ *   with the full list, or - when we send the sync token of our last poll - with only the friends
+ *   added, removed and moved since then, which are merged into the list we already have.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+public class FriendSync {
+    private static final String TAG = "FriendSync";
+    
+    private String token = null;
+    private final FriendTable friends = new FriendTable();
+    
+    /** Get the token to send with the next poll, or null to ask for the full list */
+    public synchronized String getToken() {
+        return token;
+    }
+    
+    /** Forget the list and the token, so the next poll asks for the full list */
+    public synchronized void reset() {
+        token = null;
+        friends.clear();
+    }
+    
+    /**
+     * Apply a nearby friends response and return every nearby friend, in no particular order. The "body" is
+     * either an array with every nearby friend, or an object with "added" (friends), "removed" (IDs)
+     * and "moved" (ID, distance, latitude and longitude) arrays. A top-level "token" is kept for the
+     * next poll.
+     */
+    public synchronized ArrayList<Friend> update(JSONObject response) throws JSONException {
+        JSONArray full = response.optJSONArray("body");
+        try {
+            if (full != null) {
+                // Friends we already know only have their position updated
+                friends.mark();
+                for (int index = 0; index < full.length(); index++) {
+                    JSONObject json = full.getJSONObject(index);
+                    int row = friends.indexOf(json.getString("id"));
+                    double latitude = json.getDouble("latitude");
+                    double longitude = json.getDouble("longitude");
+                    double distance = json.getDouble("distance");
+                    if (row >= 0 && friends.getProfile(row).hasProfile(json)) {
+                        friends.set(row, latitude, longitude, distance);
+                    } else {
+                        Friend f = new Friend(json);
+                        Log.d(TAG, "User " + f + " is nearby.");
+                        friends.put(f, latitude, longitude, distance);
+                    }
+                }
+                friends.sweep();
+                token = response.optString("token", null);
+                return friends.all();
+            }
+            
+            JSONObject delta = response.getJSONObject("body");
+            if (token == null) {
+                throw new JSONException("Got a delta without having a list to apply it to");
+            }
+            merge(delta);
+            token = response.optString("token", null);
+            return friends.all();
+        } catch (JSONException e) {
+            // Whatever we have is now suspect - start over with the full list next time
+            reset();
+            throw e;
+        }
+    }
+    
+    /** Merge a delta into the list */
+    private void merge(JSONObject delta) throws JSONException {
+        JSONArray removed = delta.optJSONArray("removed");
+        JSONArray added = delta.optJSONArray("added");
+        JSONArray moved = delta.optJSONArray("moved");
+        
+        if (removed != null) {
+            for (int index = 0; index < removed.length(); index++) {
+                friends.remove(removed.getString(index));
+            }
+        }
+        if (added != null) {
+            for (int index = 0; index < added.length(); index++) {
+                Friend f = new Friend(added.getJSONObject(index));
+                Log.d(TAG, "User " + f + " is now nearby.");
+                friends.put(f, f.getLatitude(), f.getLongitude(), f.getDistance());
+            }
+        }
+        if (moved != null) {
+            for (int index = 0; index < moved.length(); index++) {
+                JSONObject position = moved.getJSONObject(index);
+                String id = position.getString("id");
+                int row = friends.indexOf(id);
+                if (row < 0) {
+                    throw new JSONException("Got a move for unknown user " + id);
+                }
+                friends.set(row, position.getDouble("latitude"), position.getDouble("longitude"),
+                        position.getDouble("distance"));
+            }
+        }
+        Log.d(TAG, "Merged delta: " + (added != null ? added.length() : 0) + " added, " +
+                (removed != null ? removed.length() : 0) + " removed, " + (moved != null ? moved.length() : 0) + " moved");
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * CLASS: FriendTable
+ *   This class stores nearby friends column by column: positions and distances live in parallel
+ *   double arrays, and each friend's profile (a Friend) is only created when they first show up or
+ *   their details change. A poll that only moves friends around updates the columns in place, and
+ *   selecting the closest friends works on row numbers in a caller-supplied array, so neither
+ *   allocates per friend. Friend objects for the UI are made on demand - only for the rows selected -
+ *   and reused while a row's position is unchanged. Not thread-safe - the owner must synchronize.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FriendTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Distances closer than this (in meters) to a view's look the same on screen, so the view is kept
+    private static final double VIEW_TOLERANCE = 0.05;
+
+    // Row of each friend, keyed by ID - the keys double as the interned IDs
+    private final Map<String, Integer> rows = new HashMap<String, Integer>();
+
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private double[] distances = new double[INITIAL_CAPACITY];
+    private Friend[] profiles = new Friend[INITIAL_CAPACITY];
+    private Friend[] views = new Friend[INITIAL_CAPACITY];
+    private int[] marks = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // Generation for mark() / sweep()
+    private int generation = 0;
+
+    // Scratch rows for closest()
+    private int[] order = new int[INITIAL_CAPACITY];
+
+    public int size() {
+        return size;
+    }
+
+    /** Get the row of a friend, or -1 if they are not in the table */
+    public int indexOf(String id) {
+        Integer row = rows.get(id);
+        return row != null ? row : -1;
+    }
+
+    /**
+     * Add a friend, or replace the profile of one already in the table
+     * @param profile: The friend's details - the given position and distance win over its own
+     * @return The friend's row
+     */
+    public int put(Friend profile, double latitude, double longitude, double distance) {
+        int row = indexOf(profile.getId());
+        if (row < 0) {
+            ensureCapacity(size + 1);
+            row = size++;
+            ids[row] = profile.getId();
+            rows.put(profile.getId(), row);
+        }
+        profiles[row] = profile;
+        // get() checks whether the profile's own position is still right before handing it out
+        views[row] = profile;
+        set(row, latitude, longitude, distance);
+        return row;
+    }
+
+    /** Move a friend already in the table, and mark the row */
+    public void set(int row, double latitude, double longitude, double distance) {
+        latitudes[row] = latitude;
+        longitudes[row] = longitude;
+        distances[row] = distance;
+        marks[row] = generation;
+    }
+
+    /** Change only the distance of a row */
+    public void setDistance(int row, double distance) {
+        distances[row] = distance;
+    }
+
+    /** Remove a friend, moving the last row into their place. Returns false if they were not in the table. */
+    public boolean remove(String id) {
+        Integer boxed = rows.remove(id);
+        if (boxed == null) return false;
+        int row = boxed;
+        int last = --size;
+        if (row != last) {
+            ids[row] = ids[last];
+            latitudes[row] = latitudes[last];
+            longitudes[row] = longitudes[last];
+            distances[row] = distances[last];
+            profiles[row] = profiles[last];
+            views[row] = views[last];
+            marks[row] = marks[last];
+            rows.put(ids[row], row);
+        }
+        ids[last] = null;
+        profiles[last] = null;
+        views[last] = null;
+        return true;
+    }
+
+    public void clear() {
+        rows.clear();
+        for (int row = 0; row < size; row++) {
+            ids[row] = null;
+            profiles[row] = null;
+            views[row] = null;
+        }
+        size = 0;
+    }
+
+    /** Start a full update: rows not put() or set() before the next sweep() are removed by it */
+    public void mark() {
+        generation++;
+    }
+
+    /** Remove the rows not touched since mark() */
+    public void sweep() {
+        for (int row = size - 1; row >= 0; row--) {
+            if (marks[row] != generation) {
+                remove(ids[row]);
+            }
+        }
+    }
+
+    public String getId(int row) {
+        return ids[row];
+    }
+
+    public double getLatitude(int row) {
+        return latitudes[row];
+    }
+
+    public double getLongitude(int row) {
+        return longitudes[row];
+    }
+
+    public double getDistance(int row) {
+        return distances[row];
+    }
+
+    /** Get the friend's details as last put(), with whatever position they had then */
+    public Friend getProfile(int row) {
+        return profiles[row];
+    }
+
+    /** Get a Friend for a row, with its current position and distance */
+    public Friend get(int row) {
+        Friend view = views[row];
+        if (view == null || view.getLatitude() != latitudes[row] || view.getLongitude() != longitudes[row]
+                || Math.abs(view.getDistance() - distances[row]) >= VIEW_TOLERANCE) {
+            view = profiles[row].movedTo(distances[row], latitudes[row], longitudes[row]);
+            views[row] = view;
+        }
+        return view;
+    }
+
+    /**
+     * Select the k closest rows without allocating: a max-heap of the best k is kept in out, then
+     * sorted in place. Takes O(n log k).
+     * @param out: Receives the rows, closest first - must hold at least k entries
+     * @return The number of rows selected, min(k, size)
+     */
+    public int select(int k, int[] out) {
+        if (k <= 0) return 0;
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            count = offer(out, count, k, row);
+        }
+        sortHeap(out, count);
+        return count;
+    }
+
+    /**
+     * Select the k closest of the given rows, in place and without allocating. Takes O(count log k).
+     * @param rows: The rows to choose from, in rows[0] to rows[count - 1] - the ones selected are moved
+     *              to the front, closest first
+     * @return The number of rows selected, min(k, count)
+     */
+    public int select(int k, int[] rows, int count) {
+        if (k <= 0) return 0;
+        // The heap never grows past the rows already read, so it can live at the front of the same array
+        int selected = 0;
+        for (int i = 0; i < count; i++) {
+            selected = offer(rows, selected, k, rows[i]);
+        }
+        sortHeap(rows, selected);
+        return selected;
+    }
+
+    /** Get Friends for the k closest rows, closest first */
+    public ArrayList<Friend> closest(int k) {
+        int count = Math.min(k, size);
+        if (order.length < count) {
+            order = new int[Math.max(count, order.length * 2)];
+        }
+        count = select(count, order);
+        return get(order, count);
+    }
+
+    /** Get Friends for the given rows, in the same order */
+    public ArrayList<Friend> get(int[] rows, int count) {
+        ArrayList<Friend> list = new ArrayList<Friend>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(get(rows[i]));
+        }
+        return list;
+    }
+
+    /** Get Friends for every row, in no particular order */
+    public ArrayList<Friend> all() {
+        ArrayList<Friend> list = new ArrayList<Friend>(size);
+        for (int row = 0; row < size; row++) {
+            list.add(get(row));
+        }
+        return list;
+    }
+
+    /**
+     * Add a row to a max-heap by distance holding the closest rows so far, at most k of them. The row
+     * is dropped if the heap is full and the row is no closer than its farthest.
+     * @return The number of rows in the heap now
+     */
+    int offer(int[] heap, int count, int k, int row) {
+        if (count < k) {
+            heap[count] = row;
+            siftUp(heap, count);
+            return count + 1;
+        }
+        if (distances[row] < distances[heap[0]]) {
+            heap[0] = row;
+            siftDown(heap, 0, count);
+        }
+        return count;
+    }
+
+    /** Sort a heap built by offer() closest first, in place: repeatedly move the farthest to the end */
+    void sortHeap(int[] heap, int count) {
+        for (int end = count - 1; end > 0; end--) {
+            int farthest = heap[0];
+            heap[0] = heap[end];
+            heap[end] = farthest;
+            siftDown(heap, 0, end);
+        }
+    }
+
+    private void siftUp(int[] heap, int index) {
+        int row = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (distances[heap[parent]] >= distances[row]) break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = row;
+    }
+
+    private void siftDown(int[] heap, int index, int length) {
+        int row = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= length) break;
+            if (child + 1 < length && distances[heap[child + 1]] > distances[heap[child]]) {
+                child++;
+            }
+            if (distances[heap[child]] <= distances[row]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = row;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) return;
+        int length = Math.max(capacity, ids.length * 2);
+        String[] newIds = new String[length];
+        System.arraycopy(ids, 0, newIds, 0, size);
+        ids = newIds;
+        latitudes = grow(latitudes, length);
+        longitudes = grow(longitudes, length);
+        distances = grow(distances, length);
+        Friend[] newProfiles = new Friend[length];
+        System.arraycopy(profiles, 0, newProfiles, 0, size);
+        profiles = newProfiles;
+        Friend[] newViews = new Friend[length];
+        System.arraycopy(views, 0, newViews, 0, size);
+        views = newViews;
+        int[] newMarks = new int[length];
+        System.arraycopy(marks, 0, newMarks, 0, size);
+        marks = newMarks;
+    }
+
+    private double[] grow(double[] column, int length) {
+        double[] grown = new double[length];
+        System.arraycopy(column, 0, grown, 0, size);
+        return grown;
+    }
+}
@@ -5,19 +5,23 @@
 
 package com.cjcornell.samplebluetooth;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPut;
-import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONArray;
 
 import com.cjcornell.samplebluetooth.data.AppSettings;
 import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.net.RestClient;
 
 import android.location.Location;
 import android.os.AsyncTask;
@@ -31,11 +35,32 @@ public class GPSAsyncTask extends AsyncTask<Location, Void, ArrayList<Friend>>
     private final String TAG = "GPSListener";
     private final long MAX_DISTANCE = 1000;
     
+    // Whether the server accepts the combined "update location and fetch nearby" request
+    private static final int COMBINED_UNKNOWN = 0;
+    private static final int COMBINED_SUPPORTED = 1;
+    private static final int COMBINED_UNSUPPORTED = 2;
+    private static volatile int combinedMode = COMBINED_UNKNOWN;
+    
+    // Unexpected answers in a row before a server that handled the combined request is taken to have dropped it
+    private static final int MAX_COMBINED_FAILURES = 3;
+    private static volatile int combinedFailures = 0;
+    
     private FriendFinderService ffs;
+    private boolean upload;
+    private Location fix;
+    private final int poll;
     
-    /** Constructor - set the friend finder service attribute */
-    public GPSAsyncTask(FriendFinderService service) {
+    /**
+     * Constructor
+     * @param service: The friend finder service
+     * @param upload: Whether to upload the location - false when we have not moved since the last upload,
+     *                so the task only asks for nearby friends
+     * @param poll: The number of the poll, to report back to the service when done
+     */
+    public GPSAsyncTask(FriendFinderService service, boolean upload, int poll) {
         ffs = service;
+        this.upload = upload;
+        this.poll = poll;
     }
     
     /**
@@ -46,65 +71,57 @@ public class GPSAsyncTask extends AsyncTask<Location, Void, ArrayList<Friend>>
     protected ArrayList<Friend> doInBackground(Location... params) 
     {
         Location loc = params[0];
+        fix = loc;
         Log.d(TAG, "Latitude: " + loc.getLatitude());
         Log.d(TAG, "Longitude: " + loc.getLongitude());
         
         String requestURL = locationURL + "/" + DataStore.getInstance().getBaseParameterString() + "/" +
                 loc.getLatitude() + "/" + loc.getLongitude();
-        HttpClient client = new DefaultHttpClient();
-        Log.d(TAG, "Sending the Put Request");
+        HttpClient client = RestClient.getInstance().getHttpClient();
         try 
         {
-            HttpPut httpPut = new HttpPut(requestURL);
-            HttpResponse response = client.execute(httpPut);
-            if(response.getStatusLine().getStatusCode() == 200)
-            {
-                Log.d(TAG,"Successfully uploaded coordinates." );
-            }  
-            else 
-            {
-                Log.e(TAG, "Could not upload coordinates.");
+            if (!upload) {
+                Log.v(TAG, "Not moved - only asking for nearby friends");
+                return AppSettings.friendFinder ? fetchFriends(client, requestURL) : null;
             }
             
-            /* Read the response fully before sending another request */
-            response.getEntity().consumeContent();
-            
-            requestURL = requestURL + "/" + MAX_DISTANCE;
-            
-            // Only ask the server for friends if the friend finder is on
-            if (AppSettings.friendFinder) {
-                Log.d(TAG, "Asking server for nearby friends.");
-                HttpGet httpGet = new HttpGet(requestURL);
-                
-                // Code copied from FindFriendsTask begins here
-                String response2 = client.execute(httpGet, new BasicResponseHandler());
-                JSONObject parsedResponse = new JSONObject(response2);
-                if (parsedResponse.has("body")) 
-                {
-                    ArrayList<Friend> friends = new ArrayList<Friend>(0);
-                    JSONArray userIds = parsedResponse.getJSONArray("body");
-                    for (int index = 0; index < userIds.length(); index++) 
-                    {
-                        JSONObject friendData = userIds.getJSONObject(index);
-                        Friend f = new Friend(friendData.getString("id"), friendData.getString("first_name"), 
-                                friendData.getString("last_name"), friendData.getString("email"), 
-                                friendData.getDouble("distance"), friendData.getDouble("latitude"), 
-                                friendData.getDouble("longitude"), friendData.getString("details1"),
-                                friendData.getString("details2"), friendData.getString("details3"));
-                        Log.d(TAG, "User " + f + " is nearby.");
-                        friends.add(f);
+            // Only ask the server for friends if the friend finder is on, and is not pushing them to us
+            if (AppSettings.friendFinder && ffs.isPushConnected()) {
+                Log.v(TAG, "Nearby friends are pushed - only uploading location");
+                uploadLocation(client, requestURL);
+                return null;
+            } else if (AppSettings.friendFinder) {
+                // Try the single round-trip mode first, unless we already know the server lacks it
+                if (combinedMode != COMBINED_UNSUPPORTED) {
+                    ArrayList<Friend> friends = updateAndFetch(client, requestURL);
+                    if (friends != null) {
+                        return friends;
                     }
-                    return friends;
-                }
-                else 
-                {
-                    Log.e(TAG, "Error checking users near me.");
                 }
             } else {
                 Log.v(TAG, "Friend finder off - not asking server for nearby friends");
+                ffs.getFriendSync().reset();
+            }
+            
+            uploadLocation(client, requestURL);
+            
+            if (AppSettings.friendFinder) {
+                return fetchFriends(client, requestURL);
             }
         }
         
+        catch (HttpResponseException e)
+        {
+            // The server was reached and turned us down (e.g. throttled us) - queueing the fix for a batch
+            // upload would only send it again at the next poll, ignoring any Retry-After
+            Log.e(TAG, "Server refused the request (" + e.getStatusCode() + ") - not queueing location.");
+        }
+        catch (IOException e)
+        {
+            // Keep the fix for the batch upload once we are back online
+            Log.e(TAG, "Error contacting server - queueing location.");
+            ffs.queueLocation(loc);
+        }
         catch (Exception e)
         {
             Log.e(TAG, "Error contacting server.");
@@ -113,15 +130,157 @@ public class GPSAsyncTask extends AsyncTask<Location, Void, ArrayList<Friend>>
         return null;
     }
     
+    /**
+     * updateAndFetch
+     *   Upload the coordinates and get the nearby friends in one exchange: a PUT with the search distance
+     *   appended, answered with the same body as the nearby friends GET. A throttled or failing server
+     *   (429 or 5xx) throws HttpResponseException, so the poll is skipped rather than retried with two more
+     *   requests. If the server does not know the request (404, 405 or 501), or answers it oddly before it
+     *   ever handled it, the combined mode is marked unsupported for the rest of the session. A server that
+     *   has handled it is only given up on after MAX_COMBINED_FAILURES odd answers in a row. Whenever the
+     *   friends were not had, null is returned, so the caller can fall back to the two-request path.
+     */
+    private ArrayList<Friend> updateAndFetch(HttpClient client, String requestURL) throws IOException, JSONException {
+        Log.d(TAG, "Sending combined update/nearby request");
+        HttpPut httpPut = new HttpPut(requestURL + "/" + MAX_DISTANCE + syncQuery());
+        HttpResponse response = client.execute(httpPut);
+        int status = response.getStatusLine().getStatusCode();
+        String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : null;
+        JSONObject parsedResponse = body != null ? parseObject(body) : null;
+        boolean hinted = readPollHint(response, parsedResponse);
+        
+        if (status == 200 && parsedResponse != null && parsedResponse.has("body")) {
+            if (combinedMode != COMBINED_SUPPORTED) {
+                Log.v(TAG, "Server supports combined update/nearby requests");
+                combinedMode = COMBINED_SUPPORTED;
+            }
+            combinedFailures = 0;
+            Log.d(TAG,"Successfully uploaded coordinates." );
+            ffs.locationUploaded(fix);
+            return parseFriends(parsedResponse);
+        }
+        if (status == 429 || (status >= 500 && status != 501)) {
+            // A server error tells us nothing about support, and two more requests would only add to the
+            // load of a server that is struggling - try again next poll
+            Log.e(TAG, "Combined request failed (" + status + (hinted ? ", server set the next poll" : "") + ")");
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+        if (status != 404 && status != 405 && status != 501 && combinedMode == COMBINED_SUPPORTED
+                && ++combinedFailures < MAX_COMBINED_FAILURES) {
+            // One odd answer does not undo the support we have seen - use two requests for this poll only
+            Log.e(TAG, "Unexpected answer to combined request (" + status + ") - falling back for this poll");
+            return null;
+        }
+        
+        Log.v(TAG, "Server does not support combined update/nearby requests (" + status + ") - falling back");
+        combinedMode = COMBINED_UNSUPPORTED;
+        return null;
+    }
+    
+    /** Upload the coordinates with a plain PUT */
+    private void uploadLocation(HttpClient client, String requestURL) throws IOException {
+        Log.d(TAG, "Sending the Put Request");
+        HttpPut httpPut = new HttpPut(requestURL);
+        HttpResponse response = client.execute(httpPut);
+        readPollHint(response, null);
+        if(response.getStatusLine().getStatusCode() == 200)
+        {
+            Log.d(TAG,"Successfully uploaded coordinates." );
+            ffs.locationUploaded(fix);
+        }  
+        else 
+        {
+            Log.e(TAG, "Could not upload coordinates.");
+        }
+        
+        /* Read the response fully before sending another request */
+        response.getEntity().consumeContent();
+    }
+    
+    /** Ask the server for the friends near the coordinates in requestURL */
+    private ArrayList<Friend> fetchFriends(HttpClient client, String requestURL) throws IOException, JSONException {
+        Log.d(TAG, "Asking server for nearby friends.");
+        HttpGet httpGet = new HttpGet(requestURL + "/" + MAX_DISTANCE + syncQuery());
+        
+        // Code copied from FindFriendsTask begins here
+        HttpResponse response = client.execute(httpGet);
+        int status = response.getStatusLine().getStatusCode();
+        String response2 = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+        if (status >= 300) {
+            readPollHint(response, null);
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+        JSONObject parsedResponse = new JSONObject(response2);
+        readPollHint(response, parsedResponse);
+        if (parsedResponse.has("body")) 
+        {
+            return parseFriends(parsedResponse);
+        }
+        else 
+        {
+            Log.e(TAG, "Error checking users near me.");
+        }
+        return null;
+    }
+    
+    /**
+     * Update the friend list from a nearby friends response - either the full list, or the changes
+     * since the sync token we sent
+     */
+    private ArrayList<Friend> parseFriends(JSONObject parsedResponse) throws JSONException {
+        return ffs.getFriendSync().update(parsedResponse);
+    }
+    
+    /** Get the query string asking for only the changes since our last poll, if we have a sync token */
+    private String syncQuery() {
+        String token = ffs.getFriendSync().getToken();
+        if (token == null) return "";
+        try {
+            return "?token=" + URLEncoder.encode(token, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return "";
+        }
+    }
+    
+    /**
+     * Pass on the server's request for when to poll next, if it made one: a nextPoll field in the body,
+     * in seconds, or else a Retry-After header
+     * @return Whether the server made a request
+     */
+    private boolean readPollHint(HttpResponse response, JSONObject parsedResponse) {
+        long delay = -1;
+        if (parsedResponse != null && parsedResponse.has("nextPoll")) {
+            delay = (long)(parsedResponse.optDouble("nextPoll", -1) * 1000);
+        }
+        if (delay < 0) {
+            delay = RestClient.getRetryAfter(response);
+        }
+        if (delay < 0) return false;
+        ffs.hintNextPoll(delay);
+        return true;
+    }
+    
+    /** Parse a response body, returning null if it is not a JSON object */
+    private static JSONObject parseObject(String body) {
+        try {
+            return new JSONObject(body);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+    
     /**
      * This method is executed after the doInBackground method finishes. It will display any
      * found friends, if the settings permit it.
      */ 
     @Override
     protected void onPostExecute(ArrayList<Friend> friends) {
+        ffs.pollFinished(poll);
+        
         // Do not display anything if the friend finder setting is off
         if (AppSettings.friendFinder) {
-            if (friends != null && friends.size() > 0) {
+            // An empty list is passed on too, so friends who left are dropped from the list
+            if (friends != null) {
                 ffs.gotFriends(friends);
             }
             Log.v(TAG, "Displayed found friends");
@@ -129,4 +288,10 @@ public class GPSAsyncTask extends AsyncTask<Location, Void, ArrayList<Friend>>
             Log.v(TAG, "Friend finder off - not displaying any friends");
         }
     }
-}
\ No newline at end of file
+    
+    /** Let the next poll start even if this one was cancelled */
+    @Override
+    protected void onCancelled(ArrayList<Friend> friends) {
+        ffs.pollFinished(poll);
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * CLASS: GeoUtils
+ *   This class holds the geographic math shared by the location code. It only works on plain
+ *   coordinates, so it can be used (and checked) without a device.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+public class GeoUtils {
+    /** Mean radius of the earth, in meters */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    private GeoUtils() {}
+
+    /**
+     * Get the great-circle distance between two points, using the haversine formula
+     * @return The distance in meters
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,366 @@
+/**
+ * CLASS: ImageCache
+ *   This class caches the images we show - item pictures keyed by URL, and Facebook profile
+ *   pictures keyed by Facebook ID. Decoded bitmaps are kept in a memory LRU sized from the app's
+ *   heap class, and the downloaded files in a size-bounded LRU in the app's cache directory, so
+ *   showing an image again costs at most a decode, and no network. Bitmaps are decoded at the size
+ *   they are shown at, and cached per size. Loads of the same image at the same size share one
+ *   download and decode.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cjcornell.samplebluetooth.net.Abortable;
+import com.cjcornell.samplebluetooth.net.ResponseCache;
+import com.cjcornell.samplebluetooth.net.SingleFlight;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+public class ImageCache {
+    private static final String TAG = "ImageCache";
+
+    private static final String CACHE_DIR = "images";
+    private static final long MAX_DISK_BYTES = 1024 * 1024 * 16;
+
+    // Memory cache size until init() knows the heap class, in bytes
+    private static final int DEFAULT_MEMORY_BYTES = 1024 * 1024 * 4;
+
+    // Part of the app's heap given to the memory cache
+    private static final int HEAP_FRACTION = 8;
+
+    private static final int CONNECT_TIMEOUT = 1000 * 15;
+    private static final int READ_TIMEOUT = 1000 * 30;
+
+    /** Where Facebook profile pictures are downloaded from */
+    public static final String PROFILE_URL_BASE = "https://graph.facebook.com/";
+
+    // Where profile pictures come from - PROFILE_URL_BASE unless pointed at a stand-in server with setProfileUrlBase()
+    private static volatile String profileUrlBase = PROFILE_URL_BASE;
+
+    private static ImageCache instance = new ImageCache();
+
+    private volatile File directory = null;
+
+    // Bytes in the disk cache, kept up to date by each write so the directory is only listed to trim it
+    private final AtomicLong diskBytes = new AtomicLong();
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+    // Locks for reading and writing cache files, picked by key
+    private final Object[] diskLocks = new Object[16];
+    {
+        for (int i = 0; i < diskLocks.length; i++) {
+            diskLocks[i] = new Object();
+        }
+    }
+    private volatile LruCache<String, Bitmap> memory = createMemoryCache(DEFAULT_MEMORY_BYTES);
+
+    // Loads in progress, keyed by memory cache key
+    private final SingleFlight<Bitmap> loads = new SingleFlight<Bitmap>();
+
+    /**
+     * A caller waiting for a load, which can give up from another thread. The download itself is
+     * only aborted once every caller sharing it has given up.
+     */
+    public static class Request implements Abortable {
+        private final SingleFlight.Ticket ticket = new SingleFlight.Ticket();
+        private volatile boolean aborted = false;
+
+        @Override
+        public void abort() {
+            aborted = true;
+            instance.loads.cancel(ticket);
+        }
+
+        public boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    /** Loading an image into the memory cache from disk or the network */
+    private class Load implements SingleFlight.Call<Bitmap> {
+        private final String key, url;
+        private final int width, height;
+        private volatile HttpURLConnection connection;
+        private volatile boolean aborted = false;
+
+        Load(String key, String url, int width, int height) {
+            this.key = key;
+            this.url = url;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public Bitmap call() {
+            byte[] data = readDisk(key);
+            if (data == null) {
+                data = download(this);
+                if (data == null) return null;
+                writeDisk(key, data);
+            }
+            Bitmap bitmap = BitmapDecoder.getInstance().decode(data, width, height);
+            if (bitmap != null) {
+                memory.put(sizedKey(key, width, height), bitmap);
+            } else {
+                Log.e(TAG, "Could not decode " + url);
+            }
+            return bitmap;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+            HttpURLConnection c = connection;
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+    }
+
+    protected ImageCache() {}
+
+    public static ImageCache getInstance() {
+        return instance;
+    }
+
+    /** Get the cache key of a Facebook profile picture */
+    public static String profileKey(String facebookId) {
+        return "facebook:" + facebookId;
+    }
+
+    /** Get the URL of a Facebook profile picture */
+    public static String profileUrl(String facebookId) {
+        return profileUrlBase + facebookId + "/picture?type=large";
+    }
+
+    /**
+     * Download profile pictures from another server, such as a local stand-in for testing. Pictures
+     * already cached are still used.
+     * @param base: The URL the Facebook ID is appended to, ending in a slash - null for PROFILE_URL_BASE
+     */
+    public static void setProfileUrlBase(String base) {
+        profileUrlBase = base != null ? base : PROFILE_URL_BASE;
+    }
+
+    /**
+     * Size the memory cache from the heap class and set up the disk cache. Until this is called,
+     * bitmaps are only cached in a small memory cache.
+     */
+    public synchronized void init(Context context) {
+        if (directory != null) return;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int bytes = am.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION;
+        LruCache<String, Bitmap> sized = createMemoryCache(bytes);
+        for (Map.Entry<String, Bitmap> entry : memory.snapshot().entrySet()) {
+            sized.put(entry.getKey(), entry.getValue());
+        }
+        memory = sized;
+        Log.v(TAG, "Memory cache: " + bytes / 1024 + " KB");
+
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        if (dir.isDirectory() || dir.mkdirs()) {
+            trim(dir);
+            directory = dir;
+        } else {
+            Log.e(TAG, "Could not create cache directory " + dir);
+        }
+    }
+
+    private LruCache<String, Bitmap> createMemoryCache(int bytes) {
+        return new LruCache<String, Bitmap>(bytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /** Get the memory cache key of an image decoded for the given size */
+    private static String sizedKey(String key, int width, int height) {
+        return key + "@" + width + "x" + height;
+    }
+
+    /** Get a bitmap decoded for the given size from memory, or null if it is not there. Cheap enough for the main thread. */
+    public Bitmap getBitmap(String key, int width, int height) {
+        return memory.get(sizedKey(key, width, height));
+    }
+
+    /**
+     * Get a bitmap from memory, else from disk, else from the network - caching it on the way.
+     * Call on a background thread - debug builds throw IllegalStateException on the main thread.
+     * @param key: The cache key - the URL, or profileKey() for profile pictures
+     * @param url: Where to download the image if it is not cached
+     * @param request: Lets another thread give up on the load, or null
+     * @param width, height: The size the image is shown at - see BitmapDecoder.decode()
+     * @return The bitmap, or null if it could not be had
+     */
+    public Bitmap load(String key, String url, Request request, int width, int height) {
+        if (BuildConfig.DEBUG && Looper.myLooper() == Looper.getMainLooper()) {
+            // Loading may mean a download - on the main thread that freezes the UI. Only debug builds
+            // fail on it; a release build would rather stutter than crash.
+            throw new IllegalStateException("ImageCache.load() called on the main thread for " + key);
+        }
+        String sized = sizedKey(key, width, height);
+        Bitmap bitmap = memory.get(sized);
+        if (bitmap != null) return bitmap;
+
+        SingleFlight.Ticket ticket = request != null ? request.ticket : new SingleFlight.Ticket();
+        try {
+            return loads.execute(sized, new Load(key, url, width, height), ticket);
+        } catch (Exception e) {
+            if (request == null || !request.isAborted()) {
+                Log.e(TAG, "Could not load " + url + ": " + e.toString());
+            }
+        }
+        return null;
+    }
+
+    /** Download the file of a load whole, or return null */
+    private byte[] download(Load load) {
+        String url = load.url;
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            load.connection = connection;
+            if (load.aborted) return null;
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(connection.getContentLength(), 8192));
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                // An aborted download may end early without an error - do not cache what we got
+                if (load.aborted) return null;
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (!load.aborted) {
+                Log.e(TAG, "Could not download " + url + ": " + e.toString());
+            }
+        } finally {
+            load.connection = null;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+        return null;
+    }
+
+    /** Get the lock for a key's file - keys share a few locks, so different files are read and written in parallel */
+    private Object lockFor(String key) {
+        return diskLocks[(key.hashCode() & 0x7fffffff) % diskLocks.length];
+    }
+
+    /** Read a cached file, or return null if it is missing or unreadable */
+    private byte[] readDisk(String key) {
+        File dir = directory;
+        if (dir == null) return null;
+        File file = new File(dir, ResponseCache.hash(key));
+        synchronized (lockFor(key)) {
+            if (!file.exists()) return null;
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    byte[] data = new byte[(int) file.length()];
+                    in.readFully(data);
+                    // Keep the file from being the next one trimmed
+                    file.setLastModified(System.currentTimeMillis());
+                    return data;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                delete(file);
+            }
+        }
+        return null;
+    }
+
+    /** Write a cached file, then trim the cache if it has grown past MAX_DISK_BYTES */
+    private void writeDisk(String key, byte[] data) {
+        File dir = directory;
+        if (dir == null) return;
+        File file = new File(dir, ResponseCache.hash(key));
+        synchronized (lockFor(key)) {
+            long replaced = file.length();
+            try {
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+                diskBytes.addAndGet(file.length() - replaced);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                diskBytes.addAndGet(-replaced);
+                file.delete();
+            }
+        }
+        if (diskBytes.get() > MAX_DISK_BYTES) {
+            trim(dir);
+        }
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    /**
+     * Remove the least recently used files until the cache fits in MAX_DISK_BYTES, and recount its
+     * size from what is left. One trim at a time; a write that finds one running leaves it the work.
+     */
+    private void trim(File dir) {
+        if (!trimming.compareAndSet(false, true)) return;
+        try {
+            File[] files = dir.listFiles();
+            if (files == null) return;
+            long total = 0;
+            for (File f : files) {
+                total += f.length();
+            }
+            if (total > MAX_DISK_BYTES) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long l = lhs.lastModified(), r = rhs.lastModified();
+                        return l < r ? -1 : (l == r ? 0 : 1);
+                    }
+                });
+                for (int i = 0; i < files.length && total > MAX_DISK_BYTES; i++) {
+                    long length = files[i].length();
+                    if (files[i].delete()) {
+                        total -= length;
+                    }
+                }
+            }
+            diskBytes.set(total);
+        } finally {
+            trimming.set(false);
+        }
+    }
+}
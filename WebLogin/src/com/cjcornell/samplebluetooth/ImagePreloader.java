@@ -0,0 +1,84 @@
+/**
+ * CLASS: ImagePreloader
+ *   This class loads the pictures of the items the user is likely to see next - the next few items
+ *   of the script, and the items the current one branches to - into the ImageCache while the current
+ *   item plays, so moving on shows the picture straight from memory. Preloads queued for an item the
+ *   user has moved away from are skipped if they have not started yet.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cjcornell.samplebluetooth.data.AppSettings;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+public class ImagePreloader {
+    private static final String TAG = "ImagePreloader";
+
+    // How many of the following items to preload
+    private static final int DEFAULT_LOOK_AHEAD = 3;
+
+    private final int lookAhead;
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // The size the pictures are shown at, as of the last preload()
+    private volatile int width, height;
+
+    public ImagePreloader() {
+        this(DEFAULT_LOOK_AHEAD);
+    }
+
+    /** @param lookAhead: How many of the items following the current one to preload */
+    public ImagePreloader(int lookAhead) {
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * Preload the pictures of the items following an item, replacing the preloads queued for the
+     * previous item
+     * @param items: The items of the script, in order
+     * @param current: The item being shown
+     * @param width, height: The size the pictures are shown at
+     */
+    public void preload(List<Item> items, Item current, int width, int height) {
+        this.width = width;
+        this.height = height;
+        generation.incrementAndGet();
+        // Item numbers start at 1, so the current item's number is the index of the one after it
+        int next = current.getItemNumber();
+        for (int i = next; i < items.size() && i < next + lookAhead; i++) {
+            add(items.get(i));
+        }
+    }
+
+    /**
+     * Preload the picture of one more item along with those queued by the last preload() - for the
+     * items the current one branches to, once their scripts are loaded. May be called on any thread.
+     */
+    public void add(Item item) {
+        // Pictures are not shown outside graphical mode
+        if (!AppSettings.graphicalMode) return;
+        final String url = item.getURL();
+        if (url == null || "".equals(url)) return;
+        final int current = generation.get();
+        final int w = width, h = height;
+        if (ImageCache.getInstance().getBitmap(url, w, h) != null) return;
+        TaskExecutors.PREFETCH.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (current != generation.get()) return;
+                Bitmap bitmap = ImageCache.getInstance().load(url, url, null, w, h);
+                Log.v(TAG, (bitmap != null ? "Preloaded " : "Could not preload ") + url);
+            }
+        });
+    }
+
+    /** Skip all the preloads that have not started yet */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+}
@@ -18,6 +18,7 @@ import org.json.JSONObject;
 
 public class Item {
     // Basic attributes of a troubleshooting attribute
+    private String commandId;
     private int itemNumber;
     private String name;
     private String description;
@@ -75,6 +76,7 @@ public class Item {
     /** Constructor */
     public Item(JSONObject json, boolean isLast, ItemGroup parent) throws JSONException {
        // Initialize the basic attributes
+       this.commandId = json.optString("commandID", null);
        this.itemNumber = json.getInt("instructionNumber");
        this.name = json.getString("name");
        this.description = json.getString("description");
@@ -117,6 +119,9 @@ public class Item {
     public String getGroupName() {
         return parent.getName();
     }
+    public String getCommandId() {
+        return commandId;
+    }
     public int getItemNumber() {
         return itemNumber;
     }
@@ -0,0 +1,83 @@
+/**
+ * CLASS: LocationBatchTask
+ *   This asynchronous task uploads the location fixes queued while we were offline, all in one request.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+
+import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.data.LocationQueue;
+import com.cjcornell.samplebluetooth.net.RestClient;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+public class LocationBatchTask extends AsyncTask<Void, Void, Boolean> {
+    private static final String TAG = "LocationBatchTask";
+    private static final String BATCH_URL = WebLogin.SERVER_ROOT + "/locationbatch";
+
+    // Most fixes sent in one request
+    private static final int MAX_BATCH = 200;
+
+    // Only one flush at a time, or the same fixes would be sent twice
+    private static boolean flushing = false;
+
+    private LocationQueue queue;
+
+    /** Constructor - set the queue to flush */
+    public LocationBatchTask(LocationQueue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * Start a flush of the given queue, unless it is empty or a flush is already running
+     */
+    public static synchronized void flush(LocationQueue queue) {
+        if (flushing || queue.isEmpty()) return;
+        flushing = true;
+        new LocationBatchTask(queue).executeOnExecutor(TaskExecutors.SYNC);
+    }
+
+    private static synchronized void flushed() {
+        flushing = false;
+    }
+
+    /**
+     * Upload the queued fixes in batches of at most MAX_BATCH, removing each batch from the queue once
+     * the server has it. Returns false if the server could not be reached.
+     */
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        HttpClient client = RestClient.getInstance().getHttpClient();
+        String requestURL = BATCH_URL + "/" + DataStore.getInstance().getBaseParameterString();
+        try {
+            while (!queue.isEmpty()) {
+                LocationQueue.Batch batch = queue.next(MAX_BATCH);
+                HttpPost httpPost = new HttpPost(requestURL);
+                httpPost.setEntity(new StringEntity(batch.getEncoded()));
+                httpPost.setHeader("Content-Type", "text/plain");
+
+                HttpResponse response = client.execute(httpPost);
+                int status = response.getStatusLine().getStatusCode();
+                response.getEntity().consumeContent();
+                if (status != 200) {
+                    Log.e(TAG, "Could not upload queued coordinates (" + status + ")");
+                    return false;
+                }
+                queue.remove(batch);
+                Log.d(TAG, "Uploaded " + batch.size() + " queued location fixes");
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error contacting server.");
+        } finally {
+            flushed();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * CLASS: PollConflator
+ *   This class keeps at most one location poll in flight. A poll asked for while another is
+ *   running waits until it finishes; if more polls are asked for meanwhile, only the newest fix is
+ *   kept. On a slow link this stops polls from piling up in the executor and hitting the server in
+ *   a burst once the link recovers. Each poll started gets a number, and reports back with it, so a
+ *   poll given up on that finishes late is never mistaken for the one in flight.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+public class PollConflator {
+    private static final String TAG = "PollConflator";
+
+    // Milliseconds after which a poll that never reported back is taken to be lost
+    private static final long POLL_TIMEOUT = 1000 * 60 * 3;
+
+    /** Starts the actual poll, which must call finished() with its number once it is done */
+    public interface Poller {
+        public void startPoll(Location fix, boolean upload, int poll);
+    }
+
+    private final Poller poller;
+
+    private boolean inFlight = false;
+    private long startedAt;
+    private Location inFlightFix = null;
+    private int inFlightPoll = 0;
+    private int lastPoll = 0;
+
+    private Location pendingFix = null;
+    private boolean pendingUpload = false;
+
+    private int dropped = 0;
+    private int coalesced = 0;
+
+    public PollConflator(Poller poller) {
+        this.poller = poller;
+    }
+
+    /**
+     * Ask for a poll. It starts right away if no poll is in flight, and otherwise waits - replacing any
+     * poll already waiting.
+     * @param upload: Whether the poll should upload the fix
+     */
+    public void submit(Location fix, boolean upload) {
+        int poll;
+        synchronized (this) {
+            if (inFlight && SystemClock.elapsedRealtime() - startedAt > POLL_TIMEOUT) {
+                Log.w(TAG, "Poll in flight never finished - giving up on it");
+                dropped++;
+                inFlight = false;
+            }
+            if (inFlight) {
+                if (pendingFix != null) {
+                    // The waiting poll is outdated by this one
+                    coalesced++;
+                    pendingUpload |= upload;
+                    pendingFix = fix;
+                } else if (fix == inFlightFix && !upload) {
+                    // The poll in flight already covers this one
+                    dropped++;
+                } else {
+                    pendingFix = fix;
+                    pendingUpload = upload;
+                }
+                Log.v(TAG, "Poll in flight - " + dropped + " dropped, " + coalesced + " coalesced so far");
+                return;
+            }
+            poll = begin(fix);
+        }
+        poller.startPoll(fix, upload, poll);
+    }
+
+    /**
+     * A poll is done - if it is the one in flight, start the waiting one, if any
+     * @param done: The number the poll was started with
+     */
+    public void finished(int done) {
+        Location fix;
+        boolean upload;
+        int poll;
+        synchronized (this) {
+            // A poll we gave up on may still report back late
+            if (!inFlight || done != inFlightPoll) return;
+            inFlight = false;
+            inFlightFix = null;
+            if (pendingFix == null) return;
+            fix = pendingFix;
+            upload = pendingUpload;
+            pendingFix = null;
+            pendingUpload = false;
+            poll = begin(fix);
+        }
+        poller.startPoll(fix, upload, poll);
+    }
+
+    /** Forget the waiting poll, counting it as dropped */
+    public synchronized void clear() {
+        if (pendingFix != null) {
+            dropped++;
+            pendingFix = null;
+            pendingUpload = false;
+        }
+    }
+
+    /** Mark a poll as in flight, and return its number */
+    private int begin(Location fix) {
+        inFlight = true;
+        inFlightFix = fix;
+        inFlightPoll = ++lastPoll;
+        startedAt = SystemClock.elapsedRealtime();
+        return inFlightPoll;
+    }
+
+    /** Get the number of polls not run because one in flight or given up on covered them */
+    public synchronized int getDropped() {
+        return dropped;
+    }
+
+    /** Get the number of waiting polls replaced by a newer one */
+    public synchronized int getCoalesced() {
+        return coalesced;
+    }
+}
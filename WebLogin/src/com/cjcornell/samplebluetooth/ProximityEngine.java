@@ -0,0 +1,153 @@
+/**
+ * CLASS: ProximityEngine
+ *   This class keeps the nearby friends list fresh between polls. The distances the server sends
+ *   are only right for where we were when we polled, so on every location fix the distances are
+ *   recomputed from the friends' last known coordinates and the list is re-ranked. Friends who come
+ *   within ANNOUNCE_DISTANCE are reported as arrivals right away, without waiting for the next poll.
+ *   A FriendIndex over the friends' coordinates finds the closest friends and the ones within a
+ *   radius without measuring everyone, and ranking uses FriendTable's top-K selection, so only the
+ *   friends listed or named get a Friend.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+public class ProximityEngine {
+    /** Friends closer than this, in meters, are announced as having arrived */
+    public static final int ANNOUNCE_DISTANCE = 100;
+
+    /** The friends list shows at most this many of the closest friends */
+    public static final int MAX_LISTED = 100;
+
+    /**
+     * A friend has to get this much further than ANNOUNCE_DISTANCE before they can arrive again, so
+     * someone hovering at the edge is not announced on every fix
+     */
+    public static final double LEAVE_FACTOR = 1.5;
+
+    // Fixes closer than this (in meters) to the last one do not change the list enough to matter
+    private static final double MIN_MOVE = 5;
+
+    /** The result of a location fix: the re-ranked list, and who arrived within ANNOUNCE_DISTANCE */
+    public static class Update {
+        public final List<Friend> friends;
+        public final List<Friend> arrived;
+
+        Update(List<Friend> friends, List<Friend> arrived) {
+            this.friends = friends;
+            this.arrived = arrived;
+        }
+    }
+
+    private final FriendTable friends = new FriendTable();
+    private final FriendIndex index = new FriendIndex(friends);
+    private final Set<String> within = new HashSet<String>();
+
+    // Scratch for the friends who were within ANNOUNCE_DISTANCE before a fix, but are not close enough after it
+    private final Set<String> left = new HashSet<String>();
+
+    // Scratch rows for queries, and for closest()
+    private int[] rows = new int[16];
+
+    private boolean havePosition = false;
+    private double latitude, longitude;
+
+    /**
+     * Take a list from the server. Its distances are the server's; friends already within
+     * ANNOUNCE_DISTANCE are taken as announced along with the list.
+     */
+    public synchronized void setFriends(List<Friend> list) {
+        friends.mark();
+        for (Friend f : list) {
+            friends.put(f, f.getLatitude(), f.getLongitude(), f.getDistance());
+            track(f.getId(), f.getDistance());
+        }
+        friends.sweep();
+        index.rebuild();
+        for (Iterator<String> ids = within.iterator(); ids.hasNext();) {
+            if (friends.indexOf(ids.next()) < 0) {
+                ids.remove();
+            }
+        }
+    }
+
+    /**
+     * Move to a new position: find who came within ANNOUNCE_DISTANCE and the MAX_LISTED closest
+     * friends, measuring only the friends the index finds near us
+     * @return The update, or null if we have no friends or have not moved enough to matter
+     */
+    public synchronized Update onLocation(double lat, double lon) {
+        if (havePosition && GeoUtils.distance(latitude, longitude, lat, lon) < MIN_MOVE) return null;
+        havePosition = true;
+        latitude = lat;
+        longitude = lon;
+        if (friends.size() == 0) return null;
+
+        ensureRows(friends.size());
+        // Only the friends inside the leave radius can arrive or stay within - the rest have left
+        int near = index.within(lat, lon, ANNOUNCE_DISTANCE * LEAVE_FACTOR, rows);
+        left.clear();
+        left.addAll(within);
+        int arrived = 0;
+        for (int i = 0; i < near; i++) {
+            int row = rows[i];
+            String id = friends.getId(row);
+            left.remove(id);
+            if (track(id, friends.getDistance(row))) {
+                rows[arrived++] = row;
+            }
+        }
+        within.removeAll(left);
+        arrived = friends.select(arrived, rows, arrived);
+        List<Friend> arrivals = friends.get(rows, arrived);
+
+        int listed = index.nearest(lat, lon, MAX_LISTED, rows);
+        return new Update(Collections.unmodifiableList(friends.get(rows, listed)), arrivals);
+    }
+
+    /** Get the k closest friends, closest first */
+    public synchronized List<Friend> closest(int k) {
+        return friends.closest(k);
+    }
+
+    /**
+     * Get the k closest of some of the friends, closest first
+     * @param among: The friends to choose from - ones we do not know are skipped
+     */
+    public synchronized List<Friend> closest(List<Friend> among, int k) {
+        ensureRows(among.size());
+        int count = 0;
+        for (Friend f : among) {
+            int row = friends.indexOf(f.getId());
+            if (row >= 0) {
+                rows[count++] = row;
+            }
+        }
+        return friends.get(rows, friends.select(k, rows, count));
+    }
+
+    /**
+     * Update whether a friend is within ANNOUNCE_DISTANCE
+     * @return Whether they just came in
+     */
+    private boolean track(String id, double distance) {
+        if (distance <= ANNOUNCE_DISTANCE) {
+            return within.add(id);
+        } else if (distance > ANNOUNCE_DISTANCE * LEAVE_FACTOR) {
+            within.remove(id);
+        }
+        return false;
+    }
+
+    private void ensureRows(int count) {
+        count = Math.max(count, MAX_LISTED);
+        if (rows.length < count) {
+            rows = new int[Math.max(count, rows.length * 2)];
+        }
+    }
+}
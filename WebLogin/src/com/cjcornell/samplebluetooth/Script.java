@@ -0,0 +1,79 @@
+/**
+ * CLASS: Script
+ *   A parsed troubleshooting script: the items of one command group, in order. Scripts are
+ *   parsed once, off the UI thread, and may be shared through the ScriptCache, so they are
+ *   never modified after parsing.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class Script {
+    private final List<Item> items;
+    
+    // Position of each instruction, by command ID
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    
+    private Script(List<Item> items) {
+        this.items = Collections.unmodifiableList(items);
+        for (int i = 0; i < items.size(); i++) {
+            String commandId = items.get(i).getCommandId();
+            if (commandId != null) {
+                positions.put(commandId, i + 1);
+            }
+        }
+    }
+    
+    /**
+     * Parse a script from a commands or branchcommand response. The first element of the "body"
+     * array describes the group, and the rest are its instructions.
+     */
+    public static Script parse(JSONObject response) throws JSONException {
+        JSONArray commands = response.getJSONArray("body");
+        List<Item> items = new ArrayList<Item>();
+        if (commands.length() > 0) {
+            ItemGroup parent = new ItemGroup(commands.getJSONObject(0));
+            for (int i = 1; i < commands.length(); i++) {
+                JSONObject command = commands.getJSONObject(i);
+                items.add(new Item(command, (i == commands.length() - 1), parent));
+            }
+        }
+        return new Script(items);
+    }
+    
+    /** Getters */
+    public List<Item> getItems() {
+        return items;
+    }
+    
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+    
+    public int getGroupId() {
+        return items.isEmpty() ? -1 : items.get(0).getGroupId();
+    }
+    
+    /**
+     * Get the position (1 based, as used by CyranoActivity.displayItemAt) of the instruction with the given
+     * command ID, or -1 if it is not in this script.
+     */
+    public int positionOf(String commandId) {
+        Integer position = positions.get(commandId);
+        return position != null ? position : -1;
+    }
+    
+    /** Get the command IDs of all the instructions in this script */
+    public Iterable<String> getCommandIds() {
+        return Collections.unmodifiableSet(positions.keySet());
+    }
+}
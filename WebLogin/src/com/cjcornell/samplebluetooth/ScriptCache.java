@@ -0,0 +1,155 @@
+/**
+ * CLASS: ScriptCache
+ *   This class loads troubleshooting scripts and keeps the parsed results in memory for a few minutes,
+ *   so a script that was prefetched (or recently seen) is displayed without a server round trip. Every
+ *   cached script is also indexed by the command IDs it contains, so a branch to an instruction in a
+ *   group we already have is resolved locally instead of asking the server for that group again.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+
+import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.net.RestClient;
+import com.cjcornell.samplebluetooth.net.SingleFlight;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+public class ScriptCache {
+    private static final String TAG = "ScriptCache";
+    private static final String COMMAND_URL = WebLogin.SERVER_ROOT + "/commands";
+    private static final String BRANCH_URL = WebLogin.SERVER_ROOT + "/branchcommand";
+    
+    private static final int MAX_SCRIPTS = 32;
+    
+    // Milliseconds a script is used without asking the server again
+    private static final long MAX_AGE = 1000 * 60 * 5;
+    
+    private static ScriptCache instance = new ScriptCache();
+    
+    // Cached scripts, by group ID
+    private final LruCache<Integer, Entry> scripts = new LruCache<Integer, Entry>(MAX_SCRIPTS) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer groupId, Entry oldValue, Entry newValue) {
+            if (newValue == null) {
+                unindex(groupId);
+            }
+        }
+    };
+    
+    // The group ID of the cached script containing each command ID
+    private final Map<String, Integer> groupOfCommand = new HashMap<String, Integer>();
+    
+    /** A cached script and when it was loaded */
+    private static class Entry {
+        final Script script;
+        final long loaded;
+        
+        Entry(Script script) {
+            this.script = script;
+            this.loaded = SystemClock.elapsedRealtime();
+        }
+    }
+    
+    protected ScriptCache() {}
+    
+    public static ScriptCache getInstance() {
+        return instance;
+    }
+    
+    /**
+     * Get the script for a command group, loading it if it is not cached. Must not be called on the UI thread.
+     * @param ticket: Identifies the caller, so the request can be cancelled
+     */
+    public Script getGroup(int groupId, SingleFlight.Ticket ticket) throws Exception {
+        Script script = peekGroup(groupId);
+        if (script != null) {
+            Log.v(TAG, "Using cached script for group " + groupId);
+            return script;
+        }
+        return load(COMMAND_URL, groupId, ticket);
+    }
+    
+    /**
+     * Get the script for the group containing an instruction, loading it if it is not cached. Must not be
+     * called on the UI thread.
+     * @param ticket: Identifies the caller, so the request can be cancelled
+     */
+    public Script getBranch(int instructionId, SingleFlight.Ticket ticket) throws Exception {
+        Script script = peekBranch(instructionId);
+        if (script != null) {
+            Log.v(TAG, "Resolved branch to instruction " + instructionId + " locally");
+            return script;
+        }
+        return load(BRANCH_URL, instructionId, ticket);
+    }
+    
+    /** Get the cached script for a command group, or null if it is not cached */
+    public Script peekGroup(int groupId) {
+        Entry entry = scripts.get(groupId);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() - entry.loaded > MAX_AGE) {
+            scripts.remove(groupId);
+            return null;
+        }
+        return entry.script;
+    }
+    
+    /** Get the cached script for the group containing an instruction, or null if it is not cached */
+    public Script peekBranch(int instructionId) {
+        Integer groupId;
+        synchronized (groupOfCommand) {
+            groupId = groupOfCommand.get(Integer.toString(instructionId));
+        }
+        return groupId != null ? peekGroup(groupId) : null;
+    }
+    
+    /**
+     * Load a script. Identical loads in flight are shared, and the response is revalidated against
+     * the HTTP cache, so an unchanged script is neither downloaded nor parsed again.
+     */
+    private Script load(String baseUrl, int id, SingleFlight.Ticket ticket) throws Exception {
+        String requestUrl = baseUrl + "/" + DataStore.getInstance().getBaseParameterString() + "/" + id;
+        Log.d(TAG, "Sending GET request at URL " + requestUrl);
+        Script script;
+        try {
+            script = Script.parse(RestClient.getInstance().getJSON(requestUrl, ticket));
+        } catch (JSONException e) {
+            Log.e(TAG, "Error parsing JSON response: " + e.toString());
+            throw e;
+        }
+        put(script);
+        return script;
+    }
+    
+    /** Cache a script under its group ID and index its command IDs */
+    private void put(Script script) {
+        if (script.isEmpty()) return;
+        int groupId = script.getGroupId();
+        scripts.put(groupId, new Entry(script));
+        synchronized (groupOfCommand) {
+            for (String commandId : script.getCommandIds()) {
+                groupOfCommand.put(commandId, groupId);
+            }
+        }
+    }
+    
+    /** Forget the command IDs of a group that left the cache */
+    private void unindex(int groupId) {
+        synchronized (groupOfCommand) {
+            Iterator<Integer> it = groupOfCommand.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() == groupId) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
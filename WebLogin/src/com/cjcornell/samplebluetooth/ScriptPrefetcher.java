@@ -0,0 +1,103 @@
+/**
+ * CLASS: ScriptPrefetcher
+ *   This class loads the scripts an item can branch to while the item plays, so a branch tap can be
+ *   displayed straight from the ScriptCache. The pictures of the items the branches land on are
+ *   handed to an ImagePreloader, if there is one. Prefetches for an item the user has moved away from
+ *   are skipped if they have not started yet.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cjcornell.samplebluetooth.net.SingleFlight;
+
+import android.util.Log;
+
+public class ScriptPrefetcher {
+    private static final String TAG = "ScriptPrefetcher";
+    
+    // How many branches deep to prefetch - 1 loads the targets of the current item only
+    private static final int DEFAULT_DEPTH = 1;
+    
+    private final int depth;
+    private final ImagePreloader images;
+    private final AtomicInteger generation = new AtomicInteger();
+    
+    public ScriptPrefetcher() {
+        this(DEFAULT_DEPTH, null);
+    }
+    
+    /** @param images: Preloads the pictures of the items the branches land on, or null */
+    public ScriptPrefetcher(ImagePreloader images) {
+        this(DEFAULT_DEPTH, images);
+    }
+    
+    /**
+     * @param depth: How many branches deep to prefetch
+     * @param images: Preloads the pictures of the items the branches land on, or null
+     */
+    public ScriptPrefetcher(int depth, ImagePreloader images) {
+        this.depth = depth;
+        this.images = images;
+    }
+    
+    /**
+     * Prefetch every branch target of an item, replacing the prefetches queued for the previous item.
+     */
+    public void prefetch(Item item) {
+        int current = generation.incrementAndGet();
+        if (item.hasBranches()) {
+            schedule(item, depth, current);
+        }
+    }
+    
+    /** Skip all the prefetches that have not started yet */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+    
+    /** Queue the loads for the branches of an item */
+    private void schedule(Item item, final int hops, final int current) {
+        for (final Item.Branch br : item.getBranches()) {
+            if (br == null || (br.groupId < 0 && br.instructionId <= 0)) continue;
+            TaskExecutors.PREFETCH.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (current != generation.get()) return;
+                    try {
+                        Item landing = load(br);
+                        if (images != null && landing != null && current == generation.get()) {
+                            images.add(landing);
+                        }
+                        if (hops > 1 && landing != null && current == generation.get()) {
+                            schedule(landing, hops - 1, current);
+                        }
+                    } catch (Exception e) {
+                        Log.v(TAG, "Could not prefetch branch " + br.label + ": " + e.toString());
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Load the script a branch leads to, the same way CoachingTask and BranchTask would
+     * @return The item the branch lands on, or null if there is none
+     */
+    private Item load(Item.Branch br) throws Exception {
+        SingleFlight.Ticket ticket = new SingleFlight.Ticket();
+        Script script;
+        int position;
+        if (br.groupId >= 0) {
+            script = ScriptCache.getInstance().getGroup(br.groupId, ticket);
+            position = br.instructionId > script.getItems().size() ? 1 : br.instructionId;
+        } else {
+            script = ScriptCache.getInstance().getBranch(br.instructionId, ticket);
+            position = script.positionOf(Integer.toString(br.instructionId));
+        }
+        Log.v(TAG, "Prefetched branch " + br.label);
+        if (position < 1 || position > script.getItems().size()) return null;
+        return script.getItems().get(position - 1);
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * CLASS: TaskExecutors
+ *   This class holds the executors our asynchronous tasks run on. Each workload gets its own
+ *   pool and thread priority, so a slow location upload never holds up a script the user tapped, and
+ *   image downloads never hold up either. Use task.executeOnExecutor(TaskExecutors.X, ...) instead of
+ *   task.execute(...), which would put every task in the single AsyncTask serial queue.
+ *
+ *   Only PREFETCH ever drops work: a dropped AsyncTask would never run onPostExecute or onCancelled,
+ *   so every pool that runs AsyncTasks queues without bound.
+ */
+
+package com.cjcornell.samplebluetooth;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.cjcornell.samplebluetooth.net.Abortable;
+
+import android.os.Process;
+import android.util.Log;
+
+public class TaskExecutors {
+    private static final String TAG = "TaskExecutors";
+
+    // Seconds an idle thread is kept around
+    private static final int KEEP_ALIVE = 30;
+
+    /** Work the user is waiting on: scripts, command groups, settings and logging in */
+    public static final Executor INTERACTIVE = create("interactive", 3, Process.THREAD_PRIORITY_DEFAULT);
+
+    /** Background synchronization with the server: location polls and uploads */
+    public static final Executor SYNC = create("sync", 1, Process.THREAD_PRIORITY_BACKGROUND);
+
+    /**
+     * Speculative loads nobody is waiting on yet, such as the scripts an item can branch to. Takes plain
+     * Runnables, not AsyncTasks: once 16 are waiting the oldest is dropped, and aborted if it is Abortable.
+     */
+    public static final Executor PREFETCH = createDropping("prefetch", 2, 16,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+
+    /** Image and audio downloads */
+    public static final Executor MEDIA = create("media", 2,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+
+    /**
+     * Create a pool whose queue has no bound, so no task is ever dropped
+     *
+     * @param name: The name of the pool, used to name its threads
+     * @param threads: The number of threads
+     * @param priority: The android.os.Process priority of the threads
+     */
+    private static Executor create(String name, int threads, int priority) {
+        return create(name, threads, new LinkedBlockingQueue<Runnable>(), priority, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Create a bounded pool. Once the queue is full the oldest queued task is dropped - for speculative
+     * work, the newest request is the one worth running. The dropped task is told, if it is Abortable,
+     * so it can forget it was queued; a dropped Future is cancelled.
+     *
+     * @param name: The name of the pool, used to name its threads
+     * @param threads: The number of threads
+     * @param queueSize: The number of tasks that may wait for a thread
+     * @param priority: The android.os.Process priority of the threads
+     */
+    private static Executor createDropping(final String name, int threads, int queueSize, int priority) {
+        RejectedExecutionHandler dropOldest = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) return;
+                Runnable dropped = executor.getQueue().poll();
+                Log.w(TAG, "The " + name + " queue is full - dropping its oldest task");
+                if (dropped instanceof Abortable) {
+                    ((Abortable) dropped).abort();
+                } else if (dropped instanceof Future) {
+                    ((Future<?>) dropped).cancel(false);
+                }
+                executor.execute(r);
+            }
+        };
+        return create(name, threads, new LinkedBlockingQueue<Runnable>(queueSize), priority, dropOldest);
+    }
+
+    private static Executor create(final String name, int threads, LinkedBlockingQueue<Runnable> queue,
+            final int priority, RejectedExecutionHandler rejected) {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, "cyrano-" + name + "-" + count.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                queue, factory, rejected);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
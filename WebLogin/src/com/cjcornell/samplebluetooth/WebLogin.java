@@ -14,11 +14,11 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.BasicResponseHandler;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.cjcornell.samplebluetooth.data.DataStore;
+import com.cjcornell.samplebluetooth.net.RestClient;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
@@ -176,7 +176,7 @@ public class WebLogin extends Activity
             String requestUrl = LOGIN_URL + "/" + accessToken + "/" + userId;
 
             try {
-                HttpClient httpClient = new DefaultHttpClient();
+                HttpClient httpClient = RestClient.getInstance().getHttpClient();
                 HttpGet request = new HttpGet(requestUrl);
                 String response = httpClient.execute(request, new BasicResponseHandler());
                 JSONObject parsedResponse = new JSONObject(response);
@@ -221,7 +221,7 @@ public class WebLogin extends Activity
      */
     private void login() {
         Log.v(TAG, "Logging in using Facebook Access Token...");
-        new LoginTask().execute(DataStore.getInstance().getAccessToken(), DataStore.getInstance().getMe().getId());
+        new LoginTask().executeOnExecutor(TaskExecutors.INTERACTIVE, DataStore.getInstance().getAccessToken(), DataStore.getInstance().getMe().getId());
     }
 
     /**
@@ -10,6 +10,7 @@ import java.text.DecimalFormat;
 
 import com.cjcornell.samplebluetooth.CyranoActivity;
 import com.cjcornell.samplebluetooth.DefaultSettingsTask;
+import com.cjcornell.samplebluetooth.TaskExecutors;
 
 import android.content.Context;
 import android.util.Log;
@@ -85,7 +86,7 @@ public class AppSettings {
         if (errorFlag) {
             Log.v(TAG, "Error on getting local settings - grabbing defaults");
             setDefaults();
-            new DefaultSettingsTask().execute();
+            new DefaultSettingsTask().executeOnExecutor(TaskExecutors.INTERACTIVE);
         }
     }
     
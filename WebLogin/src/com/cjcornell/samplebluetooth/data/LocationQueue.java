@@ -0,0 +1,187 @@
+/**
+ * CLASS: LocationQueue
+ *   This class keeps the location fixes we could not upload while the network was down. The
+ *   fixes are saved to a private file so they survive a restart, and are sent to the server in
+ *   a single delta-encoded batch once we are connected again. A batch remembers which fixes it
+ *   holds, so fixes queued or dropped while it is uploading are not mixed up with it.
+ */
+
+package com.cjcornell.samplebluetooth.data;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+public class LocationQueue {
+    private static final String TAG = "LocationQueue";
+
+    private static final String QUEUE_FILE = "location_queue.dat";
+
+    // Most fixes kept - the oldest are dropped past this
+    private static final int MAX_FIXES = 500;
+
+    // A fix closer than this (in meters) to the last queued one is not worth keeping
+    private static final float MIN_DISTANCE = 10;
+
+    // Coordinates are sent as integers in units of 1e-5 degrees (about a meter)
+    private static final double COORDINATE_SCALE = 1e5;
+
+    private final Context context;
+    private final List<Fix> fixes = new ArrayList<Fix>();
+
+    /** A single queued fix */
+    private static class Fix {
+        long time;
+        double latitude;
+        double longitude;
+
+        Fix(long time, double latitude, double longitude) {
+            this.time = time;
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    /** Some queued fixes, encoded for upload - see next() */
+    public static class Batch {
+        private final List<Fix> fixes;
+        private final String encoded;
+
+        private Batch(List<Fix> fixes, String encoded) {
+            this.fixes = fixes;
+            this.encoded = encoded;
+        }
+
+        /** Get the number of fixes in the batch */
+        public int size() {
+            return fixes.size();
+        }
+
+        /** Get the batch as sent to the server */
+        public String getEncoded() {
+            return encoded;
+        }
+    }
+
+    /** Constructor - loads any fixes saved by a previous run */
+    public LocationQueue(Context context) {
+        this.context = context.getApplicationContext();
+        load();
+    }
+
+    /**
+     * Queue a fix. If the device has not moved since the last queued fix, the fix is skipped;
+     * the server only needs to know where we went, not that we stood still.
+     */
+    public synchronized void add(Location location) {
+        if (!fixes.isEmpty()) {
+            Fix last = fixes.get(fixes.size() - 1);
+            float[] distance = new float[1];
+            Location.distanceBetween(last.latitude, last.longitude, location.getLatitude(), location.getLongitude(), distance);
+            if (distance[0] < MIN_DISTANCE) {
+                return;
+            }
+        }
+        if (fixes.size() >= MAX_FIXES) {
+            fixes.remove(0);
+        }
+        fixes.add(new Fix(location.getTime(), location.getLatitude(), location.getLongitude()));
+        Log.v(TAG, "Queued location fix (" + fixes.size() + " pending)");
+        save();
+    }
+
+    public synchronized boolean isEmpty() {
+        return fixes.isEmpty();
+    }
+
+    public synchronized int size() {
+        return fixes.size();
+    }
+
+    /**
+     * Take the oldest queued fixes, up to count, as a batch. The fixes stay queued until the batch
+     * is removed.
+     */
+    public synchronized Batch next(int count) {
+        List<Fix> batch = new ArrayList<Fix>(fixes.subList(0, Math.min(count, fixes.size())));
+        return new Batch(batch, encode(batch));
+    }
+
+    /**
+     * Encode fixes for upload. The first fix is sent as "seconds,latitude,longitude" and each
+     * following one as the difference from the fix before it, all in integers, separated by ";".
+     * A slow walk then costs a few characters per fix.
+     */
+    private static String encode(List<Fix> batch) {
+        StringBuilder sb = new StringBuilder();
+        long lastTime = 0, lastLat = 0, lastLon = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Fix fix = batch.get(i);
+            long time = fix.time / 1000;
+            long lat = Math.round(fix.latitude * COORDINATE_SCALE);
+            long lon = Math.round(fix.longitude * COORDINATE_SCALE);
+            if (i > 0) {
+                sb.append(';');
+            }
+            sb.append(time - lastTime).append(',').append(lat - lastLat).append(',').append(lon - lastLon);
+            lastTime = time;
+            lastLat = lat;
+            lastLon = lon;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove a batch's fixes - call this once they were uploaded. Fixes dropped from the queue while
+     * the batch was uploading are gone already; fixes queued meanwhile stay.
+     */
+    public synchronized void remove(Batch batch) {
+        // Fixes are only equal to themselves, so this removes exactly the batch's fixes
+        fixes.removeAll(batch.fixes);
+        save();
+    }
+
+    /** Load the queue from the queue file */
+    private synchronized void load() {
+        try {
+            BufferedReader file = new BufferedReader(new InputStreamReader(context.openFileInput(QUEUE_FILE)));
+            String line;
+            while ((line = file.readLine()) != null) {
+                String[] data = line.split(",");
+                if (data.length == 3) {
+                    fixes.add(new Fix(Long.parseLong(data[0]), Double.parseDouble(data[1]), Double.parseDouble(data[2])));
+                }
+            }
+            file.close();
+            Log.v(TAG, "Loaded " + fixes.size() + " queued location fixes");
+        } catch (FileNotFoundException e) {
+            // Nothing queued
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Save the queue to the queue file, removing the file when the queue is empty */
+    private void save() {
+        if (fixes.isEmpty()) {
+            context.deleteFile(QUEUE_FILE);
+            return;
+        }
+        try {
+            BufferedWriter file = new BufferedWriter(new OutputStreamWriter(
+                    context.openFileOutput(QUEUE_FILE, Context.MODE_PRIVATE)));
+            for (Fix fix : fixes) {
+                file.write(fix.time + "," + fix.latitude + "," + fix.longitude + "\n");
+            }
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * INTERFACE: Abortable
+ *   Implemented by tasks holding a network request that can be aborted from another thread, so
+ *   work nobody will look at stops using bandwidth.
+ */
+
+package com.cjcornell.samplebluetooth.net;
+
+public interface Abortable {
+    public void abort();
+}
@@ -0,0 +1,190 @@
+/**
+ * CLASS: ResponseCache
+ *   This class caches response bodies along with their ETag and Last-Modified validators, so
+ *   GET requests for data that rarely changes can be revalidated instead of downloaded again.
+ *   Entries are kept in memory (with their parsed JSON) and on disk in the app's cache directory.
+ */
+
+package com.cjcornell.samplebluetooth.net;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+public class ResponseCache {
+    private static final String TAG = "ResponseCache";
+
+    private static final String CACHE_DIR = "http";
+    private static final int MAX_MEMORY_ENTRIES = 32;
+    private static final int MAX_DISK_ENTRIES = 64;
+
+    private static ResponseCache instance = new ResponseCache();
+
+    private File directory = null;
+    private final LruCache<String, Entry> memory = new LruCache<String, Entry>(MAX_MEMORY_ENTRIES);
+
+    /**
+     * A cached response. The parsed JSON is kept with the body so a revalidated response does not
+     * have to be parsed again - callers must treat it as read-only.
+     */
+    public static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final String body;
+        private JSONObject json = null;
+
+        public Entry(String etag, String lastModified, String body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /** Get the body as a JSONObject, parsing it only the first time */
+        public synchronized JSONObject getJSON() throws JSONException {
+            if (json == null) {
+                json = new JSONObject(body);
+            }
+            return json;
+        }
+    }
+
+    protected ResponseCache() {}
+
+    public static ResponseCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Set up the disk cache. Until this is called, entries are only cached in memory.
+     */
+    public synchronized void init(Context context) {
+        if (directory != null) return;
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        if (dir.isDirectory() || dir.mkdirs()) {
+            directory = dir;
+        } else {
+            Log.e(TAG, "Could not create cache directory " + dir);
+        }
+    }
+
+    /** Get the cached entry for a URL, or null if there is none */
+    public synchronized Entry get(String url) {
+        Entry entry = memory.get(url);
+        if (entry == null && directory != null) {
+            entry = read(fileFor(url));
+            if (entry != null) {
+                memory.put(url, entry);
+            }
+        }
+        return entry;
+    }
+
+    /** Cache an entry for a URL */
+    public synchronized void put(String url, Entry entry) {
+        memory.put(url, entry);
+        if (directory != null) {
+            write(fileFor(url), entry);
+            trim();
+        }
+    }
+
+    /** Read an entry file, or return null if it is missing or unreadable */
+    private Entry read(File file) {
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                String etag = in.readUTF();
+                String lastModified = in.readUTF();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return new Entry(etag.length() > 0 ? etag : null, lastModified.length() > 0 ? lastModified : null,
+                        new String(body, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            file.delete();
+        }
+        return null;
+    }
+
+    /** Write an entry file */
+    private void write(File file, Entry entry) {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                byte[] body = entry.getBody().getBytes("UTF-8");
+                out.writeUTF(entry.getETag() != null ? entry.getETag() : "");
+                out.writeUTF(entry.getLastModified() != null ? entry.getLastModified() : "");
+                out.writeInt(body.length);
+                out.write(body);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            file.delete();
+        }
+    }
+
+    /** Remove the least recently written files once there are too many */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_DISK_ENTRIES) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - MAX_DISK_ENTRIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    /** The cache file for a URL - the file name is a hash, as URLs contain the access token */
+    private File fileFor(String url) {
+        return new File(directory, hash(url));
+    }
+
+    /** Hash a key into a file name */
+    public static String hash(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
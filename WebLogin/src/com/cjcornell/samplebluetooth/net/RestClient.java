@@ -0,0 +1,281 @@
+/**
+ * CLASS: RestClient
+ *   This class holds the single HTTP transport shared by every REST task. Connections to the
+ *   server are pooled and kept alive between requests, so a poll or a script load does not pay
+ *   a fresh TCP handshake each time. Responses are requested gzipped and transparently inflated.
+ */
+
+package com.cjcornell.samplebluetooth.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+public class RestClient {
+    private static final String TAG = "RestClient";
+
+    // Default timeouts, in milliseconds
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    // Pool limits - everything we talk to lives on SERVER_ROOT, so most connections share one route
+    private static final int MAX_TOTAL_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 6;
+
+    private static RestClient instance = new RestClient();
+
+    private final DefaultHttpClient httpClient;
+    private final SingleFlight<JSONObject> jsonRequests = new SingleFlight<JSONObject>();
+
+    protected RestClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT);
+        ConnManagerParams.setTimeout(params, DEFAULT_CONNECT_TIMEOUT);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+
+        // Ask for gzipped responses...
+        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader("Accept-Encoding")) {
+                    request.addHeader("Accept-Encoding", "gzip");
+                }
+            }
+        });
+
+        // ...and inflate them before anyone reads the body
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return;
+                Header encoding = entity.getContentEncoding();
+                if (encoding == null) return;
+                for (HeaderElement element : encoding.getElements()) {
+                    if ("gzip".equalsIgnoreCase(element.getName())) {
+                        response.setEntity(new GzipDecompressingEntity(entity));
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    public static RestClient getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get the shared HttpClient. Do not shut down its connection manager, and always consume
+     * the response entity (or use a ResponseHandler) so the connection goes back to the pool.
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Set the connect and read timeouts used by all subsequent requests
+     * @param connectTimeout: Milliseconds to wait for a connection to be established (or leased from the pool)
+     * @param readTimeout: Milliseconds to wait for data once connected
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        HttpParams params = httpClient.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+        ConnManagerParams.setTimeout(params, connectTimeout);
+        Log.v(TAG, "Timeouts set to " + connectTimeout + "ms connect, " + readTimeout + "ms read");
+    }
+
+    /**
+     * Execute a request and return the response body. Throws an HttpResponseException for any
+     * non-2xx status.
+     */
+    public String execute(HttpUriRequest request) throws IOException {
+        return httpClient.execute(request, new BasicResponseHandler());
+    }
+
+    /**
+     * Convenience method - send a GET request to the given URL and return the response body.
+     */
+    public String get(String url) throws IOException {
+        return execute(new HttpGet(url));
+    }
+
+    /**
+     * Send a conditional GET request. If a cached response for the URL exists, its validators are sent
+     * and a 304 answer is served from the cache without transferring the body again. Otherwise the new
+     * body is cached if the server sent an ETag or Last-Modified header. Throws an HttpResponseException
+     * for any other non-2xx status.
+     */
+    public ResponseCache.Entry getConditional(String url) throws IOException {
+        return getConditional(new HttpGet(url));
+    }
+    
+    /**
+     * Send a conditional GET request, as above. Taking the request lets the caller abort it.
+     */
+    public ResponseCache.Entry getConditional(HttpGet httpGet) throws IOException {
+        String url = httpGet.getURI().toString();
+        ResponseCache cache = ResponseCache.getInstance();
+        ResponseCache.Entry cached = cache.get(url);
+        
+        if (cached != null) {
+            if (cached.getETag() != null) {
+                httpGet.addHeader("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                httpGet.addHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        
+        HttpResponse response = httpClient.execute(httpGet);
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            Log.v(TAG, "Not modified, using cached response for " + url);
+            return cached;
+        }
+        
+        String body = entity != null ? EntityUtils.toString(entity, "UTF-8") : "";
+        if (status < 200 || status >= 300) {
+            throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+        }
+        
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        ResponseCache.Entry fresh = new ResponseCache.Entry(etag != null ? etag.getValue() : null,
+                lastModified != null ? lastModified.getValue() : null, body);
+        if (etag != null || lastModified != null) {
+            cache.put(url, fresh);
+        }
+        return fresh;
+    }
+
+    /**
+     * Get a JSON response with a conditional GET, sharing the request with any identical one already in
+     * flight. Duplicate callers get the same parsed JSONObject, which must be treated as read-only.
+     * @param ticket: Identifies the caller - pass it to cancel() to give up on the request
+     */
+    public JSONObject getJSON(String url, SingleFlight.Ticket ticket) throws Exception {
+        final HttpGet httpGet = new HttpGet(url);
+        return jsonRequests.execute(url, new SingleFlight.Call<JSONObject>() {
+            @Override
+            public JSONObject call() throws Exception {
+                return getConditional(httpGet).getJSON();
+            }
+            
+            @Override
+            public void abort() {
+                httpGet.abort();
+            }
+        }, ticket);
+    }
+    
+    /**
+     * Give up on a getJSON() request. The request is aborted unless another caller shares it.
+     */
+    public void cancel(SingleFlight.Ticket ticket) {
+        jsonRequests.cancel(ticket);
+    }
+
+    /**
+     * Get how long the server asked us to wait before the next request, from a Retry-After header
+     * given either in seconds or as an HTTP date.
+     * @return The delay in milliseconds, or -1 if the response has no (valid) Retry-After header
+     */
+    public static long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) return -1;
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not seconds - try a date
+        }
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            Log.w(TAG, "Bad Retry-After header: " + value);
+        }
+        return -1;
+    }
+
+    /**
+     * Wraps a gzipped entity so its content is inflated on the fly. The content length is
+     * unknown once inflated.
+     */
+    private static class GzipDecompressingEntity extends HttpEntityWrapper {
+        public GzipDecompressingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new GZIPInputStream(wrappedEntity.getContent());
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * CLASS: SingleFlight
+ *   This class is a registry of calls in flight, keyed by what they request. A caller asking for
+ *   a key that is already being fetched waits for that call and shares its result, instead of
+ *   starting a duplicate one. A caller can give up through its Ticket; the call itself is only
+ *   aborted once every caller sharing it has given up.
+ */
+
+package com.cjcornell.samplebluetooth.net;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+public class SingleFlight<T> {
+    private static final String TAG = "SingleFlight";
+
+    private final Map<String, Flight<T>> inFlight = new HashMap<String, Flight<T>>();
+
+    /** A call that can be aborted from another thread */
+    public interface Call<T> extends Callable<T> {
+        public void abort();
+    }
+
+    /** Identifies one caller, so it can give up on its call */
+    public static class Ticket {
+        private Flight<?> flight = null;
+        private boolean cancelled = false;
+    }
+
+    /** A call in flight and the number of callers still waiting for it */
+    private static class Flight<T> {
+        final String key;
+        final FutureTask<T> task;
+        final Call<T> call;
+        int waiters = 0;
+
+        Flight(String key, Call<T> call) {
+            this.key = key;
+            this.call = call;
+            this.task = new FutureTask<T>(call);
+        }
+    }
+
+    /**
+     * Run the call for the given key, or wait for the identical call already in flight. The call
+     * runs on the thread of the first caller; exceptions it throws are rethrown to every caller.
+     *
+     * @param key: Identifies the call - the endpoint and its parameters
+     * @param call: The call to run if none is in flight for the key
+     * @param ticket: Identifies this caller - pass it to cancel() to give up
+     */
+    public T execute(final String key, Call<T> call, Ticket ticket) throws Exception {
+        Flight<T> flight;
+        boolean owner = false;
+        synchronized (inFlight) {
+            if (ticket.cancelled) {
+                throw new InterruptedIOException("Cancelled before starting " + key);
+            }
+            flight = inFlight.get(key);
+            if (flight == null) {
+                flight = new Flight<T>(key, call);
+                inFlight.put(key, flight);
+                owner = true;
+            } else {
+                Log.v(TAG, "Joining request in flight for " + key);
+            }
+            flight.waiters++;
+            ticket.flight = flight;
+        }
+
+        try {
+            if (owner) {
+                try {
+                    flight.task.run();
+                } finally {
+                    synchronized (inFlight) {
+                        if (inFlight.get(key) == flight) {
+                            inFlight.remove(key);
+                        }
+                    }
+                }
+            }
+            return flight.task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            synchronized (inFlight) {
+                if (!ticket.cancelled) {
+                    flight.waiters--;
+                }
+                ticket.flight = null;
+            }
+        }
+    }
+
+    /**
+     * Give up on the call a ticket is waiting for. If no other caller is waiting for it, the call
+     * is aborted. A ticket cancelled before execute() makes execute() fail right away.
+     */
+    public void cancel(Ticket ticket) {
+        synchronized (inFlight) {
+            if (ticket.cancelled) return;
+            ticket.cancelled = true;
+            Flight<?> flight = ticket.flight;
+            if (flight != null && --flight.waiters == 0) {
+                // Let the next caller start afresh rather than join an aborted call
+                Log.v(TAG, "No callers left - aborting request for " + flight.key);
+                if (inFlight.get(flight.key) == flight) {
+                    inFlight.remove(flight.key);
+                }
+                flight.call.abort();
+            }
+        }
+    }
+}
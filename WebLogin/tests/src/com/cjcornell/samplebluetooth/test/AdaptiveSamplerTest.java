@@ -0,0 +1,152 @@
+/**
+ * CLASS: AdaptiveSamplerTest
+ *   These tests feed the AdaptiveSampler a scripted trip - sitting still, then walking, then driving
+ *   - and check the movement mode it settles on and the provider and poll settings it asks for in
+ *   each, and when it says a fix is worth uploading.
+ */
+
+package com.cjcornell.samplebluetooth.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cjcornell.samplebluetooth.AdaptiveSampler;
+import com.cjcornell.samplebluetooth.GeoUtils;
+
+import android.location.Location;
+import android.test.InstrumentationTestCase;
+
+public class AdaptiveSamplerTest extends InstrumentationTestCase {
+    private static final double START_LAT = 37.7786, START_LON = -122.3893;
+    private static final double METERS_PER_DEGREE = Math.PI * GeoUtils.EARTH_RADIUS / 180;
+
+    // How far to walk before an upload is due, and how long before one is due anyway
+    private static final double UPLOAD_DISTANCE = 25;
+    private static final long UPLOAD_AGE = 1000 * 60 * 15;
+
+    private AdaptiveSampler sampler;
+
+    // Where the script has got to, and the modes the sampler switched to on the way
+    private long time;
+    private double lat;
+    private final List<Integer> switches = new ArrayList<Integer>();
+    private int uploads;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        sampler = new AdaptiveSampler();
+        time = 1000L * 60 * 60 * 24 * 365 * 40;
+        lat = START_LAT;
+    }
+
+    /** The mode follows the trip, and each mode asks for its own update interval and poll rate */
+    public void testModeFollowsTrip() {
+        // Sitting on a desk, with the fixes wandering a little within their accuracy
+        move(0, 30, 8, 8);
+        assertEquals(AdaptiveSampler.STATIONARY, sampler.getMode());
+        assertSettings(1000 * 60 * 5, 50, 4);
+
+        // Walking at 1.4 m/s
+        move(1.4, 10, 12, 5);
+        assertEquals(AdaptiveSampler.WALKING, sampler.getMode());
+        assertSettings(1000 * 60, 10, 1);
+
+        // Driving at 15 m/s
+        move(15, 5, 12, 10);
+        assertEquals(AdaptiveSampler.DRIVING, sampler.getMode());
+        assertSettings(1000 * 15, 25, 0.5);
+
+        // Each switch was reported once, in order
+        assertEquals("[" + AdaptiveSampler.STATIONARY + ", " + AdaptiveSampler.WALKING + ", "
+                + AdaptiveSampler.DRIVING + "]", switches.toString());
+    }
+
+    /** A moment below walking speed is not enough to call the device stationary */
+    public void testBriefStopIsNotStationary() {
+        // The sampler starts out walking
+        move(1.4, 10, 12, 5);
+        assertEquals(AdaptiveSampler.WALKING, sampler.getMode());
+        // Waiting at a crossing for a minute
+        move(0, 10, 6, 5);
+        assertEquals(AdaptiveSampler.WALKING, sampler.getMode());
+        move(1.4, 10, 6, 5);
+        assertTrue("Switched to " + switches, switches.isEmpty());
+    }
+
+    /** Fixes are only uploaded when we have moved far enough, or the last upload is getting old */
+    public void testUploadGating() {
+        Location first = fix(0);
+        assertTrue("The first fix is always worth uploading", sampler.shouldUpload(first, time));
+
+        // Until the server has it, the fix keeps being worth uploading
+        assertTrue(sampler.shouldUpload(first, time + 1000));
+        sampler.markUploaded(first, time);
+        assertFalse(sampler.shouldUpload(first, time + 1000));
+
+        // Moving a little is not worth an upload; moving UPLOAD_DISTANCE is
+        assertFalse(sampler.shouldUpload(START_LAT + 10 / METERS_PER_DEGREE, START_LON, time + 1000));
+        assertTrue(sampler.shouldUpload(START_LAT + (UPLOAD_DISTANCE + 1) / METERS_PER_DEGREE, START_LON, time + 1000));
+
+        // Staying put, an upload is due once the last one is UPLOAD_AGE old
+        assertFalse(sampler.shouldUpload(first, time + UPLOAD_AGE - 1000));
+        assertTrue(sampler.shouldUpload(first, time + UPLOAD_AGE));
+    }
+
+    /** Fed the trip the way the service feeds it, the sampler uploads far less while sitting still */
+    public void testUploadsFollowTrip() {
+        // Twenty minutes on a desk: the first fix, then one once the last upload is UPLOAD_AGE old
+        move(0, 30, 20, 0);
+        assertEquals(1, uploads);
+        move(0, 30, 20, 0);
+        assertEquals(2, uploads);
+
+        // Walking 14 m between fixes: every second fix has gone UPLOAD_DISTANCE
+        uploads = 0;
+        move(1.4, 10, 20, 0);
+        assertEquals(10, uploads);
+    }
+
+    /**
+     * Feed fixes heading north at a steady speed, uploading the ones the sampler says are worth it
+     * @param speed: In meters per second
+     * @param interval: Seconds between fixes
+     * @param count: The number of fixes
+     * @param accuracy: The accuracy of the fixes, in meters - stationary fixes wander within it
+     */
+    private void move(double speed, int interval, int count, float accuracy) {
+        for (int i = 0; i < count; i++) {
+            time += interval * 1000L;
+            lat += speed * interval / METERS_PER_DEGREE;
+            double wander = (i % 2 == 0 ? 1 : -1) * accuracy / 2 / METERS_PER_DEGREE;
+            Location location = fix(accuracy);
+            location.setLatitude(lat + wander);
+            if (sampler.onLocation(location)) {
+                switches.add(sampler.getMode());
+            }
+            if (sampler.shouldUpload(location, time)) {
+                sampler.markUploaded(location, time);
+                uploads++;
+            }
+        }
+    }
+
+    /** Make a fix where the script is now */
+    private Location fix(float accuracy) {
+        Location location = new Location("test");
+        location.setTime(time);
+        location.setLatitude(lat);
+        location.setLongitude(START_LON);
+        if (accuracy > 0) {
+            location.setAccuracy(accuracy);
+        }
+        return location;
+    }
+
+    /** Check the provider update interval and poll factor the sampler asks for */
+    private void assertSettings(long minTime, float minDistance, double pollFactor) {
+        assertEquals(minTime, sampler.getMinTime());
+        assertEquals(minDistance, sampler.getMinDistance(), 0);
+        assertEquals(pollFactor, sampler.getPollFactor(), 0);
+    }
+}
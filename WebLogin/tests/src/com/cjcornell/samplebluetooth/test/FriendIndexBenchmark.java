@@ -0,0 +1,126 @@
+/**
+ * CLASS: FriendIndexBenchmark
+ *   This class times the queries ProximityEngine makes on every location fix - the MAX_LISTED
+ *   closest friends, and the friends within the arrival radius - with the FriendIndex and with a
+ *   scan of every friend, for 1k, 10k and 100k friends. Friends are crowded round a venue, with some
+ *   scattered across the city. Each query's results are checked against the scan. It needs no
+ *   device: run main() on a desktop JVM with the app's classes and android.jar on the class path.
+ */
+
+package com.cjcornell.samplebluetooth.test;
+
+import java.util.Random;
+
+import com.cjcornell.samplebluetooth.Friend;
+import com.cjcornell.samplebluetooth.FriendIndex;
+import com.cjcornell.samplebluetooth.FriendTable;
+import com.cjcornell.samplebluetooth.GeoUtils;
+import com.cjcornell.samplebluetooth.ProximityEngine;
+
+public class FriendIndexBenchmark {
+    private static final int[] SIZES = { 1000, 10000, 100000 };
+
+    // Query points per size, and rounds of them to warm up the JIT with
+    private static final int QUERIES = 200;
+    private static final int WARMUP_ROUNDS = 3;
+
+    // The venue, how far its crowd spreads, and how far the rest are scattered, in degrees
+    private static final double VENUE_LAT = 37.7786, VENUE_LON = -122.3893;
+    private static final double CROWD_SPREAD = 0.004;
+    private static final double CITY_SPREAD = 0.1;
+    private static final double CROWD_FRACTION = 0.8;
+
+    private static final int K = ProximityEngine.MAX_LISTED;
+    private static final double RADIUS = ProximityEngine.ANNOUNCE_DISTANCE * ProximityEngine.LEAVE_FACTOR;
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        Random random = new Random(size);
+        FriendTable table = new FriendTable();
+        for (int i = 0; i < size; i++) {
+            boolean crowd = random.nextDouble() < CROWD_FRACTION;
+            double spread = crowd ? CROWD_SPREAD : CITY_SPREAD;
+            double lat = VENUE_LAT + random.nextGaussian() * spread;
+            double lon = VENUE_LON + random.nextGaussian() * spread;
+            table.put(new Friend("id" + i, "First", "Last" + i, "", 0, lat, lon, "", "", ""), lat, lon, 0);
+        }
+        FriendIndex index = new FriendIndex(table);
+        long buildStart = System.nanoTime();
+        index.rebuild();
+        long build = System.nanoTime() - buildStart;
+
+        // We are usually in the crowd
+        double[] lats = new double[QUERIES], lons = new double[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            lats[q] = VENUE_LAT + random.nextGaussian() * CROWD_SPREAD;
+            lons[q] = VENUE_LON + random.nextGaussian() * CROWD_SPREAD;
+        }
+
+        int[] rows = new int[size], expected = new int[size];
+        long indexed = 0, scanned = 0;
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            indexed = 0;
+            scanned = 0;
+            for (int q = 0; q < QUERIES; q++) {
+                long start = System.nanoTime();
+                int nearest = index.nearest(lats[q], lons[q], K, rows);
+                double[] nearestDistances = distances(table, rows, nearest);
+                int within = index.within(lats[q], lons[q], RADIUS, rows);
+                double[] withinDistances = distances(table, rows, within);
+                indexed += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int row = 0; row < size; row++) {
+                    table.setDistance(row, GeoUtils.distance(lats[q], lons[q], table.getLatitude(row),
+                            table.getLongitude(row)));
+                }
+                int expectedNearest = table.select(K, expected);
+                int expectedWithin = 0;
+                for (int row = 0; row < size; row++) {
+                    if (table.getDistance(row) <= RADIUS) {
+                        expectedWithin++;
+                    }
+                }
+                scanned += System.nanoTime() - start;
+
+                check("nearest", nearestDistances, distances(table, expected, expectedNearest));
+                if (within != expectedWithin) {
+                    throw new AssertionError("within: found " + within + " friends, expected " + expectedWithin);
+                }
+                for (double distance : withinDistances) {
+                    if (distance > RADIUS) {
+                        throw new AssertionError("within: found a friend " + distance + " m away");
+                    }
+                }
+            }
+        }
+        System.out.println(String.format("%6d friends: build %.2f ms, index %.3f ms/query, scan %.3f ms/query",
+                size, build / 1e6, indexed / 1e6 / QUERIES, scanned / 1e6 / QUERIES));
+    }
+
+    private static double[] distances(FriendTable table, int[] rows, int count) {
+        double[] distances = new double[count];
+        for (int i = 0; i < count; i++) {
+            distances[i] = table.getDistance(rows[i]);
+        }
+        return distances;
+    }
+
+    /** Check that two lists of distances, closest first, are the same */
+    private static void check(String query, double[] actual, double[] expected) {
+        if (actual.length != expected.length) {
+            throw new AssertionError(query + ": found " + actual.length + " friends, expected " + expected.length);
+        }
+        for (int i = 0; i < actual.length; i++) {
+            if (Math.abs(actual[i] - expected[i]) > 1e-6) {
+                throw new AssertionError(query + ": friend " + i + " is " + actual[i] + " m away, expected "
+                        + expected[i]);
+            }
+        }
+    }
+}
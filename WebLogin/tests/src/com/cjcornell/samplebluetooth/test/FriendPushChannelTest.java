@@ -0,0 +1,125 @@
+/**
+ * CLASS: FriendPushChannelTest
+ *   These tests run the push channel against a LocalServer playing the nearby friends stream: one
+ *   that pushes updates, one that does not offer the stream, and one that accepts connections and
+ *   hangs up right away.
+ */
+
+package com.cjcornell.samplebluetooth.test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+import com.cjcornell.samplebluetooth.FriendPushChannel;
+
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+public class FriendPushChannelTest extends InstrumentationTestCase {
+    // How long to wait for something that should happen
+    private static final long TIMEOUT = 1000 * 5;
+
+    private static final String EVENT_STREAM = "Content-Type: text/event-stream\r\nCache-Control: no-cache\r\n";
+
+    private LocalServer server;
+    private FriendPushChannel channel;
+
+    // What the channel told its listener, in order
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LocalServer();
+        channel = new FriendPushChannel(new FriendPushChannel.UrlSource() {
+            @Override
+            public String getUrl() {
+                return server.getUrl("/nearbystream");
+            }
+        }, new FriendPushChannel.Listener() {
+            @Override
+            public void onConnected() {
+                events.add("connected");
+            }
+
+            @Override
+            public void onUpdate(JSONObject update) {
+                events.add("update " + update.optString("token"));
+            }
+
+            @Override
+            public void onDisconnected() {
+                events.add("disconnected");
+            }
+
+            @Override
+            public void onUnavailable() {
+                events.add("unavailable");
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.stop();
+        server.shutdown();
+        super.tearDown();
+    }
+
+    /** Updates are handed over as soon as the server sends them, heartbeats are skipped */
+    public void testPushesUpdates() throws Exception {
+        channel.start();
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        assertNotNull("The channel never connected", exchange);
+        assertTrue(exchange.getRequestLine(), exchange.getRequestLine().startsWith("GET /nearbystream "));
+
+        exchange.respond(200, EVENT_STREAM, null);
+        assertEquals("connected", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        exchange.write(": heartbeat\n\n");
+        exchange.write("data: {\"token\":\"a\",\"body\":[]}\n\n");
+        assertEquals("update a", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // An event may be split over several data lines
+        exchange.write("data: {\"token\":\"b\",\n");
+        exchange.write("data: \"body\":[]}\n\n");
+        assertEquals("update b", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        exchange.close();
+        assertEquals("disconnected", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /** A server without the stream makes the channel give up at once, so polling takes over */
+    public void testGivesUpWhenNotOffered() throws Exception {
+        channel.start();
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        assertNotNull("The channel never connected", exchange);
+        exchange.respondAndClose(404, "text/html", "Not found".getBytes("US-ASCII"));
+
+        assertEquals("unavailable", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(channel.isRunning());
+        assertNull("The channel connected again", server.takeExchange(1500));
+    }
+
+    /**
+     * A server that accepts the stream and hangs up at once does not reset the backoff: each reconnect
+     * waits longer than the one before
+     */
+    public void testBacksOffWhenServerHangsUp() throws Exception {
+        channel.start();
+        long[] times = new long[3];
+        for (int i = 0; i < times.length; i++) {
+            LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+            assertNotNull("The channel did not reconnect", exchange);
+            times[i] = SystemClock.elapsedRealtime();
+            exchange.respond(200, EVENT_STREAM, null);
+            exchange.close();
+        }
+
+        long first = times[1] - times[0], second = times[2] - times[1];
+        assertTrue("Reconnected after " + first + " ms, then " + second + " ms", second > first * 3 / 2);
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * CLASS: ImageLoadingTest
+ *   These tests keep image loading off the main thread - the friend drill-down used to wait there
+ *   for the whole profile picture download. Pictures are served by a LocalServer, which holds back
+ *   its answer, so a load that blocks the main thread shows up as a slow call rather than passing
+ *   unnoticed. Profile pictures are pointed at the server with ImageCache.setProfileUrlBase(), and
+ *   get a new Facebook ID each run so the disk cache never has them.
+ */
+
+package com.cjcornell.samplebluetooth.test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.cjcornell.samplebluetooth.BuildConfig;
+import com.cjcornell.samplebluetooth.CyranoActivity;
+import com.cjcornell.samplebluetooth.DownloadImageTask;
+import com.cjcornell.samplebluetooth.FacebookProfileDownloader;
+import com.cjcornell.samplebluetooth.Friend;
+import com.cjcornell.samplebluetooth.FriendFinderService;
+import com.cjcornell.samplebluetooth.ImageCache;
+import com.cjcornell.samplebluetooth.R;
+import com.cjcornell.samplebluetooth.TaskExecutors;
+import com.cjcornell.samplebluetooth.data.AppSettings;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.widget.ImageView;
+import android.widget.ListView;
+
+public class ImageLoadingTest extends InstrumentationTestCase {
+    // How long a call on the main thread may take before we take it as blocking
+    private static final long MAX_MAIN_THREAD_MILLIS = 200;
+
+    // How long to wait for something that should happen
+    private static final long TIMEOUT = 1000 * 5;
+
+    private LocalServer server;
+    private ImageView image;
+    private DownloadImageTask task;
+    private final Drawable placeholder = new ColorDrawable(0xFF808080);
+
+    // The activity, for the drill-down test, and the settings it ran with before
+    private CyranoActivity activity;
+    private Boolean graphicalMode, autoDisplayFriends, friendAudio;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LocalServer();
+        ImageCache.setProfileUrlBase(server.getUrl("/"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (activity != null) {
+            AppSettings.graphicalMode = graphicalMode;
+            AppSettings.autoDisplayFriends = autoDisplayFriends;
+            AppSettings.friendAudio = friendAudio;
+            activity.stopService(new Intent(activity, FriendFinderService.class));
+            activity.finish();
+        }
+        ImageCache.setProfileUrlBase(null);
+        server.shutdown();
+        super.tearDown();
+    }
+
+    /** Starting to load an image on the main thread returns at once, and leaves the placeholder up */
+    public void testLoadDoesNotBlockMainThread() throws Throwable {
+        long elapsed = startLoad(server.getUrl("/slow.png"));
+        assertTrue("The main thread waited " + elapsed + " ms", elapsed < MAX_MAIN_THREAD_MILLIS);
+
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        assertNotNull("The image was never requested", exchange);
+        assertSame(placeholder, image.getDrawable());
+
+        // Once the server answers, the image is shown
+        exchange.respondAndClose(200, "image/png", png());
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (!(image.getDrawable() instanceof BitmapDrawable) && SystemClock.uptimeMillis() < deadline) {
+            getInstrumentation().waitForIdleSync();
+            Thread.sleep(50);
+        }
+        assertTrue("The image was never shown", image.getDrawable() instanceof BitmapDrawable);
+    }
+
+    /** A load given up when the view changes drops its download, and never replaces the placeholder */
+    public void testCancelledLoadIsNotShown() throws Throwable {
+        startLoad(server.getUrl("/cancelled.png"));
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        assertNotNull("The image was never requested", exchange);
+
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                task.cancel(true);
+                task.abort();
+            }
+        });
+        assertTrue("The download was not aborted", exchange.awaitClientClose(TIMEOUT));
+
+        getInstrumentation().waitForIdleSync();
+        assertSame(placeholder, image.getDrawable());
+    }
+
+    /** Debug builds refuse to load an image on the main thread at all */
+    public void testLoadOnMainThreadFailsInDebugBuilds() throws Throwable {
+        if (!BuildConfig.DEBUG) return;
+        final String url = server.getUrl("/main.png");
+        final Throwable[] thrown = new Throwable[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ImageCache.getInstance().load(url, url, null, 48, 48);
+                } catch (IllegalStateException e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        assertNotNull("ImageCache.load() ran on the main thread", thrown[0]);
+        assertNull("ImageCache.load() started a download on the main thread", server.takeExchange(200));
+    }
+
+    /** Starting a profile picture download on the main thread returns at once, and shows it when it arrives */
+    public void testProfileDownloaderDoesNotBlockMainThread() throws Throwable {
+        final String id = newFacebookId();
+        final long[] elapsed = new long[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                image = new ImageView(getInstrumentation().getTargetContext());
+                image.setImageDrawable(placeholder);
+                image.setTag(id);
+                new FacebookProfileDownloader(image).executeOnExecutor(TaskExecutors.MEDIA, id);
+                elapsed[0] = SystemClock.uptimeMillis() - start;
+            }
+        });
+        assertTrue("The main thread waited " + elapsed[0] + " ms", elapsed[0] < MAX_MAIN_THREAD_MILLIS);
+
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        assertNotNull("The picture was never requested", exchange);
+        assertTrue(exchange.getRequestLine(), exchange.getRequestLine().startsWith("GET /" + id + "/picture"));
+        assertMainThreadFree();
+        assertSame(placeholder, image.getDrawable());
+
+        exchange.respondAndClose(200, "image/png", png());
+        assertTrue("The picture was never shown", awaitNewDrawable(image, placeholder));
+    }
+
+    /**
+     * Drilling down from the friends list to a friend shows the placeholder and returns at once; the
+     * main thread stays free while the server holds back the picture, which is shown once it comes
+     */
+    public void testDrillDownDoesNotBlockMainThread() throws Throwable {
+        activity = launchActivity(getInstrumentation().getTargetContext().getPackageName(), CyranoActivity.class, null);
+        graphicalMode = AppSettings.graphicalMode;
+        autoDisplayFriends = AppSettings.autoDisplayFriends;
+        friendAudio = AppSettings.friendAudio;
+        AppSettings.graphicalMode = true;
+        AppSettings.autoDisplayFriends = true;
+        AppSettings.friendAudio = false;
+
+        String id = newFacebookId();
+        final List<Friend> friends = Collections.unmodifiableList(new ArrayList<Friend>(Collections.singletonList(
+                new Friend(id, "Test", "Friend", "", 25, 37.7786, -122.3893, "", "", ""))));
+        final ListView list = (ListView) activity.findViewById(R.id.friendsList);
+        final ImageView picture = (ImageView) activity.findViewById(R.id.friendPicture);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                activity.displayFriends(friends);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+
+        final long[] elapsed = new long[1];
+        final Drawable[] shown = new Drawable[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                list.performItemClick(list.getAdapter().getView(0, null, list), 0, list.getItemIdAtPosition(0));
+                elapsed[0] = SystemClock.uptimeMillis() - start;
+                shown[0] = picture.getDrawable();
+            }
+        });
+        assertTrue("The drill-down took " + elapsed[0] + " ms on the main thread", elapsed[0] < MAX_MAIN_THREAD_MILLIS);
+        assertEquals(id, picture.getTag());
+
+        // The list may have asked for the same picture for its avatar - hold back every request for it
+        List<LocalServer.Exchange> exchanges = new ArrayList<LocalServer.Exchange>();
+        LocalServer.Exchange exchange = server.takeExchange(TIMEOUT);
+        while (exchange != null) {
+            assertTrue(exchange.getRequestLine(), exchange.getRequestLine().startsWith("GET /" + id + "/picture"));
+            exchanges.add(exchange);
+            exchange = server.takeExchange(500);
+        }
+        assertFalse("The picture was never requested", exchanges.isEmpty());
+        assertMainThreadFree();
+        assertSame(shown[0], picture.getDrawable());
+
+        for (LocalServer.Exchange e : exchanges) {
+            e.respondAndClose(200, "image/png", png());
+        }
+        assertTrue("The picture was never shown", awaitNewDrawable(picture, shown[0]));
+    }
+
+    /** Check that the main thread runs what is posted to it right away - nothing is blocking it */
+    private void assertMainThreadFree() throws Throwable {
+        final long posted = SystemClock.uptimeMillis();
+        final long[] waited = new long[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                waited[0] = SystemClock.uptimeMillis() - posted;
+            }
+        });
+        assertTrue("The main thread was blocked for " + waited[0] + " ms", waited[0] < MAX_MAIN_THREAD_MILLIS);
+    }
+
+    /**
+     * Wait for a view to show something other than what it showed before
+     * @return Whether it did within TIMEOUT
+     */
+    private boolean awaitNewDrawable(ImageView view, Drawable before) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+        while (view.getDrawable() == before && SystemClock.uptimeMillis() < deadline) {
+            getInstrumentation().waitForIdleSync();
+            Thread.sleep(50);
+        }
+        return view.getDrawable() != before;
+    }
+
+    /** Get a Facebook ID no earlier run has cached a picture for */
+    private static String newFacebookId() {
+        return "test" + System.currentTimeMillis() + SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Show the placeholder and start loading an image the way the activity does, on the main thread
+     * @return How long the main thread spent on it, in ms
+     */
+    private long startLoad(final String url) throws Throwable {
+        final long[] elapsed = new long[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                image = new ImageView(getInstrumentation().getTargetContext());
+                image.setImageDrawable(placeholder);
+                task = new DownloadImageTask(image);
+                task.executeOnExecutor(TaskExecutors.MEDIA, url);
+                elapsed[0] = SystemClock.uptimeMillis() - start;
+            }
+        });
+        return elapsed[0];
+    }
+
+    /** Get a small PNG for the server to send */
+    private static byte[] png() {
+        Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * CLASS: LocalServer
+ *   This class is a stand-in HTTP server on the loopback interface for tests. Each connection it
+ *   accepts is handed to the test as an Exchange, which has read the request line and headers and
+ *   lets the test answer when it likes - or never, or hang up - so slow and misbehaving servers can
+ *   be played.
+ */
+
+package com.cjcornell.samplebluetooth.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class LocalServer {
+    private final ServerSocket socket;
+    private final BlockingQueue<Exchange> exchanges = new LinkedBlockingQueue<Exchange>();
+    private final Thread acceptor;
+
+    /** One connection to the server, with its request read */
+    public static class Exchange {
+        private final Socket socket;
+        private final String requestLine;
+
+        Exchange(Socket socket) throws IOException {
+            this.socket = socket;
+            InputStream in = socket.getInputStream();
+            requestLine = readLine(in);
+            // Skip the headers - the tests only look at the request line
+            String line;
+            do {
+                line = readLine(in);
+            } while (line != null && line.length() > 0);
+        }
+
+        /** Get the request line, such as "GET /path HTTP/1.1" */
+        public String getRequestLine() {
+            return requestLine;
+        }
+
+        /** Answer with a status line, headers and the start of a body, leaving the connection open */
+        public void respond(int status, String headers, byte[] body) throws IOException {
+            OutputStream out = socket.getOutputStream();
+            out.write(("HTTP/1.1 " + status + " Test\r\n" + headers + "\r\n").getBytes("US-ASCII"));
+            if (body != null) {
+                out.write(body);
+            }
+            out.flush();
+        }
+
+        /** Send more of the body */
+        public void write(String data) throws IOException {
+            OutputStream out = socket.getOutputStream();
+            out.write(data.getBytes("UTF-8"));
+            out.flush();
+        }
+
+        /** Answer with a whole body, and close the connection */
+        public void respondAndClose(int status, String contentType, byte[] body) throws IOException {
+            respond(status, "Content-Type: " + contentType + "\r\nContent-Length: " + body.length +
+                    "\r\nConnection: close\r\n", body);
+            close();
+        }
+
+        /**
+         * Wait for the client to hang up
+         * @return Whether it did within the time given
+         */
+        public boolean awaitClientClose(long millis) throws IOException {
+            socket.setSoTimeout((int) millis);
+            try {
+                InputStream in = socket.getInputStream();
+                while (in.read() != -1) {}
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                // A reset is a hang up too
+                return true;
+            }
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            if (c == -1 && line.size() == 0) return null;
+            return line.toString("US-ASCII");
+        }
+    }
+
+    public LocalServer() throws IOException {
+        socket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread("LocalServer") {
+            @Override
+            public void run() {
+                while (!socket.isClosed()) {
+                    try {
+                        exchanges.add(new Exchange(socket.accept()));
+                    } catch (IOException e) {
+                        // Closed, or a client gave up before sending its request
+                    }
+                }
+            }
+        };
+        acceptor.start();
+    }
+
+    /** Get the URL of a path on the server */
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + socket.getLocalPort() + path;
+    }
+
+    /**
+     * Wait for the next connection
+     * @return The connection, or null if none came within the time given
+     */
+    public Exchange takeExchange(long millis) throws InterruptedException {
+        return exchanges.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the server and drop the connections no test has taken */
+    public void shutdown() {
+        try {
+            socket.close();
+        } catch (IOException e) {}
+        Exchange exchange;
+        while ((exchange = exchanges.poll()) != null) {
+            exchange.close();
+        }
+    }
+}